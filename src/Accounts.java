@@ -0,0 +1,128 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Balances of the credit cards Bank knows, in cents. The card numbers form an
+ * open-addressing hash table of primitives, fixed once loaded, and each slot's
+ * balance is an atomic long. A debit is a compare-and-set loop that never takes
+ * a balance below zero, so any number of threads can debit concurrently
+ * without locks and without overdrafts.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class Accounts {
+
+	/* card number of an empty slot; 0 is not a valid card number */
+	private static final long EMPTY = 0;
+
+	private final long[] cards;
+	private final AtomicLongArray balances;
+	private final int mask;
+	private final int size;
+
+	private Accounts(long[] cardList, long[] centsList, int count) {
+		// at most half full
+		int capacity = Integer.highestOneBit(Math.max(2, count)) << 2;
+		cards = new long[capacity];
+		balances = new AtomicLongArray(capacity);
+		mask = capacity - 1;
+		int accounts = 0;
+		for (int i = 0; i < count; i++) {
+			int slot = find(cardList[i]);
+			if (cards[slot] == EMPTY) {
+				cards[slot] = cardList[i];
+				accounts++;
+			}
+			// a repeated card number keeps its last balance
+			balances.set(slot, centsList[i]);
+		}
+		size = accounts;
+	}
+
+	/** Load a file of "creditCardNumber balance" lines, balances in dollars **/
+	public static Accounts load(String fileName) throws IOException {
+		long[] cards = new long[1024];
+		long[] cents = new long[1024];
+		int count = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.trim().split("\\s+");
+				if (columns.length < 2 || Long.parseLong(columns[0]) == EMPTY) {
+					continue;
+				}
+				if (count == cards.length) {
+					cards = Arrays.copyOf(cards, count * 2);
+					cents = Arrays.copyOf(cents, count * 2);
+				}
+				cards[count] = Long.parseLong(columns[0]);
+				cents[count] = Math.round(Double.parseDouble(columns[1]) * 100);
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		return new Accounts(cards, cents, count);
+	}
+
+	/** Take an amount from a card's balance if the balance covers it
+	 * @return false if the card is unknown or the balance is too low; nothing is taken then **/
+	public boolean debit(long creditCardNumber, long cents) {
+		int slot = find(creditCardNumber);
+		if (cards[slot] == EMPTY || cents < 0) {
+			return false;
+		}
+		while (true) {
+			long balance = balances.get(slot);
+			if (balance < cents) {
+				return false;
+			}
+			if (balances.compareAndSet(slot, balance, balance - cents)) {
+				return true;
+			}
+		}
+	}
+
+	/** Take an amount already approved, replayed from the ledger: the balance is not checked **/
+	public void replayDebit(long creditCardNumber, long cents) {
+		int slot = find(creditCardNumber);
+		if (cards[slot] != EMPTY) {
+			balances.addAndGet(slot, -cents);
+		}
+	}
+
+	/** Give back an amount taken from a card, for a purchase voided after its approval or
+	 * replayed from the ledger **/
+	public void credit(long creditCardNumber, long cents) {
+		int slot = find(creditCardNumber);
+		if (cards[slot] != EMPTY) {
+			balances.addAndGet(slot, cents);
+		}
+	}
+
+	/** Balance of a card in cents, -1 if the card is unknown **/
+	public long getBalance(long creditCardNumber) {
+		int slot = find(creditCardNumber);
+		return cards[slot] == EMPTY ? -1 : balances.get(slot);
+	}
+
+	/** Number of cards **/
+	public int size() {
+		return size;
+	}
+
+	/** Slot holding a card number, or the empty slot where it would go **/
+	private int find(long creditCardNumber) {
+		for (int slot = (int) Hashing.mix(creditCardNumber) & mask;; slot = (slot + 1) & mask) {
+			if (cards[slot] == creditCardNumber || cards[slot] == EMPTY) {
+				return slot;
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Decides whether a server takes on a new request or answers BUSY at once.
+ * Every source address has a token bucket refilled at RATE requests per second
+ * up to BURST, so one noisy sender runs out of tokens without starving the
+ * others, and the server's work queue is bounded: a request arriving while
+ * QUEUE_SIZE requests are waiting is turned away too. A refused request is
+ * told when to retry: RETRY_AFTER milliseconds when the queue is full, else
+ * a slot of its own after its bucket's next token, the requests refused one
+ * after the other being given slots 1/RATE seconds apart, so they do not all
+ * come back at once.
+ *
+ * The limits are read from the system properties prefix.rate, prefix.burst,
+ * prefix.queueSize and prefix.retryAfter (for example store.rate); a rate of 0
+ * turns the buckets off. An instance belongs to one event loop; its counters
+ * can be read from any thread.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class AdmissionControl {
+
+	/* source addresses with a bucket at most; the least recently seen one is forgotten */
+	public static final int MAX_SOURCES = 65536;
+
+	public final double RATE;
+	public final double BURST;
+	public final int QUEUE_SIZE;
+	public final int RETRY_AFTER;
+
+	private final Map<SocketAddress, Bucket> buckets = new LinkedHashMap<SocketAddress, Bucket>(1024, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<SocketAddress, Bucket> eldest) {
+			return size() > MAX_SOURCES;
+		}
+	};
+
+	private final LongAdder admitted = new LongAdder();
+	private final LongAdder rateLimited = new LongAdder();
+	private final LongAdder queueFull = new LongAdder();
+	private volatile int queueDepth = 0;
+	private volatile int maxQueueDepth = 0;
+	private long reportedRejections = 0;
+
+	/**
+	 * @param prefix of the system properties
+	 * @param rate default requests per second of one source
+	 * @param burst default requests one source may send at once
+	 * @param queueSize default requests waiting at most
+	 */
+	public AdmissionControl(String prefix, double rate, double burst, int queueSize) {
+		RATE = Double.parseDouble(System.getProperty(prefix + ".rate", String.valueOf(rate)));
+		BURST = Math.max(1, Double.parseDouble(System.getProperty(prefix + ".burst", String.valueOf(burst))));
+		QUEUE_SIZE = Math.max(1, Integer.getInteger(prefix + ".queueSize", queueSize));
+		RETRY_AFTER = Math.max(1, Integer.getInteger(prefix + ".retryAfter", 50));
+	}
+
+	/** Admit a request from a source while queueDepth requests are waiting
+	 * @return 0 if it is admitted, otherwise the milliseconds after which to retry **/
+	public int admit(SocketAddress source, int queueDepth) {
+		setQueueDepth(queueDepth);
+		if (queueDepth >= QUEUE_SIZE) {
+			queueFull.increment();
+			return RETRY_AFTER;
+		}
+		return admit(source);
+	}
+
+	/** Admit a request from a source that does not go through the work queue
+	 * @return 0 if it is admitted, otherwise the milliseconds after which to retry **/
+	public int admit(SocketAddress source) {
+		if (RATE > 0) {
+			Bucket bucket = buckets.get(source);
+			if (bucket == null) {
+				bucket = new Bucket(BURST);
+				buckets.put(source, bucket);
+			}
+			long now = System.nanoTime();
+			bucket.tokens = Math.min(BURST, bucket.tokens + (now - bucket.updated) * RATE / 1e9);
+			bucket.updated = now;
+			if (bucket.tokens < 1) {
+				rateLimited.increment();
+				long nextToken = now + (long) ((1 - bucket.tokens) * 1e9 / RATE);
+				bucket.retrySlot = Math.max(nextToken, bucket.retrySlot + (long) (1e9 / RATE));
+				return (int) Math.max(1, (bucket.retrySlot - now + 999999) / 1000000);
+			}
+			bucket.tokens--;
+		}
+		admitted.increment();
+		return 0;
+	}
+
+	/** Record the depth of the work queue **/
+	public void setQueueDepth(int depth) {
+		queueDepth = depth;
+		if (depth > maxQueueDepth) {
+			maxQueueDepth = depth;
+		}
+	}
+
+	public long getAdmitted() {
+		return admitted.sum();
+	}
+
+	/** Requests refused because their source ran out of tokens **/
+	public long getRateLimited() {
+		return rateLimited.sum();
+	}
+
+	/** Requests refused because the work queue was full **/
+	public long getQueueFull() {
+		return queueFull.sum();
+	}
+
+	public long getRejected() {
+		return rateLimited.sum() + queueFull.sum();
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/** Deepest the work queue has been **/
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/** A line of counters if requests were refused since the last report, otherwise null **/
+	public String report(String name) {
+		long rejected = getRejected();
+		if (rejected == reportedRejections) {
+			return null;
+		}
+		reportedRejections = rejected;
+		return name + " admission: " + getAdmitted() + " admitted, " + getRateLimited() + " rate limited, "
+				+ getQueueFull() + " refused with a full queue (depth " + queueDepth + ", max " + maxQueueDepth
+				+ " of " + QUEUE_SIZE + ")";
+	}
+
+	/** Tokens of one source **/
+	private static class Bucket {
+		double tokens;
+		long updated = System.nanoTime();
+		/* when the last refused request was told to retry */
+		long retrySlot = updated;
+
+		Bucket(double tokens) {
+			this.tokens = tokens;
+		}
+	}
+}
@@ -1,17 +1,22 @@
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -25,21 +30,16 @@ import java.util.List;
 public class Bank {
 
 	public final int BUFFER_SIZE = 1024;
-	public final int REGISTER = 1;
-	public final int LOOKUP = 2;
-	public final int SUCCESS = 3;
-	public final int FAIL = 4;
-	public final int GET_BANK_INFO = 5;
-	public final int GET_CONTENT_INFO = 6;
-	public final int OK = 7;
-	public final int NOT_OK = 8;
-	public final int VALIDATE_TRANSACTION = 9;
-	public final int CONTENT_REQUEST = 10;
-	public final int LIST_ITEMS_REQUEST = 11;
-	public final int BUY_REQUEST = 12;
 
 	public final String NAMESERVER_IP = "127.0.0.1";
 	public final long TIMEOUT = 1000;
+	public final String LEDGER_FILE = System.getProperty("bank.ledger", "bank.ledger");
+	/* balances of the cards; without this file, odd itemIDs are approved and even ones refused */
+	public final String ACCOUNTS_FILE = System.getProperty("bank.accounts", "accounts.txt");
+	/* requests handled in one round of the event loop at most, so replies are not held back forever */
+	public final int MAX_READS = 256;
+	/* milliseconds between two reports of refused requests */
+	public final long ADMISSION_REPORT = 10000;
 
 	// set Server parameters
 	private int bankPort = 22000; // default
@@ -47,10 +47,46 @@ public class Bank {
 	private Selector selector = null;
 	private DatagramChannel datagramChannel = null;
 	private DatagramSocket datagramSocket = null;
+	/* replies already sent, so retransmitted requests are not executed twice */
+	private ReplyCache replyCache = new ReplyCache();
+	/* heartbeats renewing the registration with NameServer */
+	private TimingWheel timingWheel = new TimingWheel(100, 512);
+	/* replies waiting for the channel to become writable */
+	private Queue<List<Object>> replyQueue = new ArrayDeque<List<Object>>();
+	/* requests received and not handled yet, each a (source address, datagram) pair */
+	private Queue<List<Object>> workQueue = new ArrayDeque<List<Object>>();
+	/* requests of each sender are limited by a token bucket (bank.rate per second, bank.burst at
+	 * once), and the work queue holds bank.queueSize requests at most */
+	private AdmissionControl admission = new AdmissionControl("bank", 20000, 2000, 4096);
+	/* BUSY replies are assembled here */
+	private ByteBuffer busyBuffer = ByteBuffer.allocate(Protocol.HEADER_SIZE + 4);
+	/* latency of each command, from its arrival to its reply, and counters, answered to STATS */
+	private Stats stats;
+	private LatencyHistogram commitLatency;
+	private LongAdder malformed;
+	private LongAdder shedBusyReplies;
+	/* replies to decisions not yet committed to the ledger, with the arrival time and type of
+	 * their requests */
+	private List<List<Object>> uncommittedReplies = new ArrayList<List<Object>>();
+	/* every decision, durable before it is answered */
+	private Ledger ledger;
+	/* balances of the cards, null if there is no accounts file */
+	private Accounts accounts = null;
+	/* state rebuilt from the ledger on startup */
+	private long transactions = 0;
+	private long approved = 0;
+	private long approvedCents = 0;
+	private long voids = 0;
+	/* approvals not voided, by ledger sequence: a void credits back what its approval debited,
+	 * once at most */
+	private Map<Long, Approval> approvals = new HashMap<Long, Approval>();
 
 	public Bank(String[] args) {
 
 		validateArguments(args);
+		openAccounts();
+		openLedger();
+		initStats();
 		serverInit();
 		handleRequests();
 	}
@@ -115,9 +151,8 @@ public class Bank {
 			System.exit(1);
 		}
 		try {
-			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
 			// registers this channel with the given selector, returning a selection key
-			datagramChannel.register(selector, SelectionKey.OP_READ, buffer);
+			datagramChannel.register(selector, SelectionKey.OP_READ);
 			// registers Bank server to NameServer
 			register();
 			System.err.print("Bank waiting for incoming connections\n");
@@ -126,60 +161,75 @@ public class Bank {
 		}
 	}
 
-	/** Handle requests, queries from Clients **/
+	/** Create the statistics, read by the STATS command **/
+	private void initStats() {
+		stats = new Stats("Bank " + bankPort);
+		commitLatency = stats.histogram("ledger commit");
+		malformed = stats.counter("malformed datagrams");
+		shedBusyReplies = stats.counter("BUSY replies dropped");
+		stats.gauge("duplicates", replyCache::getHits);
+		stats.gauge("ledger records", ledger::size);
+		stats.gauge("transactions approved", () -> approved);
+		stats.gauge("transactions voided", () -> voids);
+		stats.gauge("requests admitted", admission::getAdmitted);
+		stats.gauge("requests rate limited", admission::getRateLimited);
+		stats.gauge("requests refused with a full queue", admission::getQueueFull);
+		stats.gauge("queue depth", admission::getQueueDepth);
+		stats.gauge("queue depth max", admission::getMaxQueueDepth);
+		stats.startDump();
+	}
+
+	/** Queue a reply and wait for the channel to become writable **/
+	private void queueReply(SocketAddress sa, ByteBuffer reply) {
+		List<Object> objList = new ArrayList<Object>();
+		objList.add(sa);
+		objList.add(reply);
+		replyQueue.add(objList);
+		datagramChannel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/** Handle requests, queries from Clients. Every datagram waiting is read in one round
+	 * into the work queue, or refused with BUSY; then MAX_READS requests of the queue at most
+	 * are handled, their decisions are committed to the ledger with one fsync, and their
+	 * replies are sent. **/
 	private void handleRequests() {
+		ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		timingWheel.schedule(ADMISSION_REPORT, this::reportAdmission);
 		try {
-			while (selector.select() > 0) {
+			while (selector.isOpen()) {
+				if (workQueue.isEmpty()) {
+					// sleep until a datagram arrives or the next heartbeat is due
+					selector.select(timingWheel.nextTimeout());
+				} else {
+					selector.selectNow();
+				}
 				for (SelectionKey key : selector.selectedKeys()) {
 					// test whether this key's channel is ready for reading from Client
-					if (key.isReadable()) {
-						// get allocated buffer with size BUFFER_SIZE
-						ByteBuffer readBuffer = (ByteBuffer) key.attachment();
+					if (key.isValid() && key.isReadable()) {
 						DatagramChannel dc = (DatagramChannel) key.channel();
-						SocketAddress sa = dc.receive(readBuffer);
-						readBuffer.flip();
-						int typeCommand = readBuffer.getInt();
-						String message = Charset.forName("UTF-8").decode(readBuffer).toString();
-						readBuffer.flip();
-						readBuffer.clear();
-
-						int result = NOT_OK;
-						// validate transaction request
-						if(typeCommand == VALIDATE_TRANSACTION) {
-							/* Message format: itemID + "\n" + itemPrice + "\n" + creditCardNumber */
-							String[] serverInfo = message.split("\n");
-							long itemID = Long.parseLong(serverInfo[0]);
-							if(itemID % 2 == 1) { // itemID is odd
-								result = OK;
-								message = "";
-								System.out.println(itemID + " " + "OK");
-							} else { // itemID is even
-								result = NOT_OK;
-								message = "";
-								System.out.println(itemID + " " + "NOT OK");
-							}
-							readBuffer.putInt(result);
-							readBuffer.put(Charset.forName("UTF-8").encode(message));
+						SocketAddress sa;
+						for (int i = 0; i < admission.QUEUE_SIZE && (sa = dc.receive(readBuffer)) != null; i++) {
 							readBuffer.flip();
-							List<Object> objList = new ArrayList<Object>();
-							objList.add(sa);
-							objList.add(readBuffer);
-							// set register status to WRITE
-							dc.register(key.selector(), SelectionKey.OP_WRITE, objList);
-						} else {
-							System.out.println("Invalid command");
+							admitRequest(sa, readBuffer, System.nanoTime());
+							readBuffer.clear();
 						}
 					}
 					// test whether this key's channel is ready for sending to Client
-					else if (key.isWritable()) {
+					if (key.isValid() && key.isWritable()) {
 						DatagramChannel dc = (DatagramChannel) key.channel();
-						List<?> objList = (ArrayList<?>) key.attachment();
-						SocketAddress sa = (SocketAddress) objList.get(0);
-						ByteBuffer writeBuffer = (ByteBuffer) objList.get(1);
-						dc.send(writeBuffer, sa);
-						writeBuffer.clear();
-						// set register status to READ
-						dc.register(selector, SelectionKey.OP_READ, writeBuffer);
+						while (!replyQueue.isEmpty()) {
+							List<?> objList = replyQueue.peek();
+							SocketAddress sa = (SocketAddress) objList.get(0);
+							ByteBuffer writeBuffer = (ByteBuffer) objList.get(1);
+							if (dc.send(writeBuffer, sa) == 0) {
+								break;
+							}
+							replyQueue.remove();
+						}
+						if (replyQueue.isEmpty()) {
+							// set register status to READ
+							key.interestOps(SelectionKey.OP_READ);
+						}
 					}
 				}
 				if (selector.isOpen()) {
@@ -187,6 +237,33 @@ public class Bank {
 				} else {
 					break;
 				}
+				List<Object> request;
+				for (int i = 0; i < MAX_READS && (request = workQueue.poll()) != null; i++) {
+					SocketAddress sa = (SocketAddress) request.get(0);
+					ByteBuffer buffer = (ByteBuffer) request.get(1);
+					try {
+						handleRequest(sa, buffer, (Long) request.get(2));
+					} catch (BufferUnderflowException e) { // malformed datagram: payload shorter than its fields
+						malformed.increment();
+						replyCache.remove(sa, Protocol.getRequestID(buffer));
+					}
+				}
+				admission.setQueueDepth(workQueue.size());
+				if (!uncommittedReplies.isEmpty()) {
+					// group commit: one fsync makes the whole round's decisions durable
+					long commitStart = System.nanoTime();
+					ledger.commit();
+					commitLatency.recordSince(commitStart);
+					for (List<Object> objList : uncommittedReplies) {
+						SocketAddress sa = (SocketAddress) objList.get(0);
+						ByteBuffer reply = (ByteBuffer) objList.get(1);
+						replyCache.put(sa, reply);
+						queueReply(sa, reply);
+						stats.recordCommand((Integer) objList.get(3), (Long) objList.get(2));
+					}
+					uncommittedReplies.clear();
+				}
+				timingWheel.advance();
 			}
 		} catch (ClosedChannelException e) {
 			e.printStackTrace();
@@ -200,97 +277,318 @@ public class Bank {
 					e.printStackTrace();
 				}
 			}
+			try {
+				ledger.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Queue a request received, or refuse it with BUSY if its sender has no tokens left or the
+	 * queue is full. Duplicates of requests already handled are answered at once. **/
+	private void admitRequest(SocketAddress sa, ByteBuffer readBuffer, long received) throws IOException {
+		if(!Protocol.isValid(readBuffer)) { // malformed datagram
+			malformed.increment();
+			return;
+		}
+		int requestID = Protocol.getRequestID(readBuffer);
+		if(Protocol.getType(readBuffer) == Protocol.STATS) { // statistics, answered at once and never cached
+			queueReply(sa, stats.reply(readBuffer, ByteBuffer.allocate(BUFFER_SIZE)));
+			return;
+		}
+		// the only reply cache lookup of a request; a retransmission is not charged
+		ByteBuffer cachedReply = replyCache.get(sa, requestID);
+		if(cachedReply == ReplyCache.IN_PROGRESS) {
+			// duplicate of a request queued or waiting for the ledger commit: its reply is on the way
+			return;
+		} else if(cachedReply != null) { // duplicate request: answer again without executing it again
+			queueReply(sa, cachedReply);
+			return;
+		}
+		int retryAfter = admission.admit(sa, workQueue.size());
+		if(retryAfter > 0) {
+			sendBusy(sa, requestID, retryAfter);
+			return;
+		}
+		replyCache.begin(sa, requestID);
+		ByteBuffer copy = ByteBuffer.allocate(readBuffer.limit());
+		readBuffer.position(0);
+		copy.put(readBuffer);
+		copy.flip();
+		List<Object> objList = new ArrayList<Object>();
+		objList.add(sa);
+		objList.add(copy);
+		objList.add(received);
+		workQueue.add(objList);
+	}
+
+	/** Tell a sender to retry its request later. The reply is dropped if replies are already
+	 * waiting, the sender retransmits anyway. **/
+	private void sendBusy(SocketAddress sa, int requestID, int retryAfter) throws IOException {
+		if(!replyQueue.isEmpty()) {
+			shedBusyReplies.increment();
+			return;
+		}
+		/* reply format: milliseconds after which to retry */
+		Protocol.begin(busyBuffer, Protocol.BUSY, requestID);
+		busyBuffer.putInt(retryAfter);
+		datagramChannel.send(Protocol.end(busyBuffer), sa);
+	}
+
+	/** Print the admission counters if requests were refused, every ADMISSION_REPORT milliseconds **/
+	private void reportAdmission() {
+		String report = admission.report("Bank");
+		if(report != null) {
+			System.out.println(report);
+		}
+		timingWheel.schedule(ADMISSION_REPORT, this::reportAdmission);
+	}
+
+	/** Handle one admitted request, received at the given System.nanoTime(); its reply waits
+	 * for the round's ledger commit **/
+	private void handleRequest(SocketAddress sa, ByteBuffer readBuffer, long received) throws IOException {
+		if(!Protocol.isValid(readBuffer)) { // malformed datagram
+			return;
+		}
+		int typeCommand = Protocol.getType(readBuffer);
+		int requestID = Protocol.getRequestID(readBuffer);
+
+		ByteBuffer reply = ByteBuffer.allocate(BUFFER_SIZE);
+		// validate transaction request
+		if(typeCommand == Protocol.VALIDATE_TRANSACTION) {
+			/* Message format: itemID, itemPrice, creditCardNumber */
+			if(readBuffer.remaining() < 24) { // malformed datagram: payload shorter than its fields
+				malformed.increment();
+				replyCache.remove(sa, requestID);
+				return;
+			}
+			long itemID = readBuffer.getLong();
+			long cents = readBuffer.getLong();
+			long creditCardNumber = readBuffer.getLong();
+			// the decision's record is the next one of the ledger
+			long sequence = ledger.size();
+			int result = validate(itemID, cents, creditCardNumber);
+			System.out.println(itemID + " " + (result == Protocol.OK ? "OK" : "NOT OK"));
+			/* Reply format: sequence of the decision's ledger record, named to void the purchase.
+			 * The reply carries the requestID so Store can match it to its purchase */
+			Protocol.begin(reply, result, requestID);
+			reply.putLong(sequence);
+		} else if(typeCommand == Protocol.VALIDATE_BATCH) {
+			/* Message format: number of entries, then entry number, itemID, itemPrice,
+			 * creditCardNumber of each */
+			if(readBuffer.remaining() < 2) { // malformed datagram: no number of entries
+				malformed.increment();
+				replyCache.remove(sa, requestID);
+				return;
+			}
+			int count = readBuffer.getShort() & 0xFFFF;
+			if(count * 28 > readBuffer.remaining()) { // malformed datagram: fewer entries than announced
+				malformed.increment();
+				replyCache.remove(sa, requestID);
+				return;
+			}
+			int[] entries = new int[count];
+			long[] itemIDs = new long[count];
+			long[] prices = new long[count];
+			long[] cards = new long[count];
+			for(int i = 0; i < count; i++) {
+				entries[i] = readBuffer.getInt();
+				itemIDs[i] = readBuffer.getLong();
+				prices[i] = readBuffer.getLong();
+				cards[i] = readBuffer.getLong();
+			}
+			// the whole batch is validated in one pass, then answered in one datagram
+			int[] results = new int[count];
+			long first = ledger.size();
+			StringBuilder log = new StringBuilder();
+			for(int i = 0; i < count; i++) {
+				results[i] = validate(itemIDs[i], prices[i], cards[i]);
+				log.append(itemIDs[i]).append(results[i] == Protocol.OK ? " OK\n" : " NOT OK\n");
+			}
+			System.out.print(log);
+			/* Reply format: number of entries, then entry number, result and sequence of the ledger
+			 * record of each */
+			Protocol.begin(reply, Protocol.SUCCESS, requestID);
+			reply.putShort((short) count);
+			for(int i = 0; i < count; i++) {
+				reply.putInt(entries[i]);
+				reply.putShort((short) results[i]);
+				reply.putLong(first + i);
+			}
+		} else if(typeCommand == Protocol.VOID_TRANSACTION) { // a purchase Store aborted after its approval
+			/* Message format: sequence of the approval's ledger record, itemID, itemPrice, creditCardNumber */
+			if(readBuffer.remaining() < 32) { // malformed datagram: payload shorter than its fields
+				malformed.increment();
+				replyCache.remove(sa, requestID);
+				return;
+			}
+			long sequence = readBuffer.getLong();
+			long itemID = readBuffer.getLong();
+			long cents = readBuffer.getLong();
+			long creditCardNumber = readBuffer.getLong();
+			int result = voidTransaction(sequence, itemID, cents, creditCardNumber);
+			System.out.println(itemID + " " + (result == Protocol.OK ? "VOIDED" : "NOT VOIDED"));
+			Protocol.begin(reply, result, requestID);
+		} else {
+			System.out.println("Invalid command");
+			replyCache.remove(sa, requestID);
+			return;
+		}
+		Protocol.end(reply);
+		List<Object> objList = new ArrayList<Object>();
+		objList.add(sa);
+		objList.add(reply);
+		objList.add(received);
+		objList.add(typeCommand);
+		uncommittedReplies.add(objList);
+	}
+
+	/** Decide a transaction and record the decision in the ledger **/
+	private int validate(long itemID, long cents, long creditCardNumber) throws IOException {
+		int result;
+		if(accounts != null) {
+			// approved only if the card's balance covers the price
+			result = accounts.debit(creditCardNumber, cents) ? Protocol.OK : Protocol.NOT_OK;
+		} else {
+			result = itemID % 2 == 1 ? Protocol.OK : Protocol.NOT_OK; // odd itemIDs are OK
+		}
+		long sequence = ledger.size();
+		ledger.append(itemID, cents, creditCardNumber, result);
+		recordDecision(sequence, itemID, cents, creditCardNumber, result);
+		return result;
+	}
+
+	/** Credit back an approved purchase and record the void in the ledger
+	 * @return NOT_OK unless the record named is an approval, not voided yet, of that price and card **/
+	private int voidTransaction(long sequence, long itemID, long cents, long creditCardNumber) throws IOException {
+		Approval approval = approvals.get(sequence);
+		if(approval == null || approval.itemID != itemID || approval.cents != cents
+				|| approval.creditCardNumber != creditCardNumber) {
+			return Protocol.NOT_OK;
+		}
+		if(accounts != null) {
+			accounts.credit(approval.creditCardNumber, approval.cents);
 		}
+		// the itemID field of a void record holds the sequence of the approval voided
+		long voidSequence = ledger.size();
+		ledger.append(sequence, approval.cents, approval.creditCardNumber, Protocol.VOID_TRANSACTION);
+		recordDecision(voidSequence, sequence, approval.cents, approval.creditCardNumber, Protocol.VOID_TRANSACTION);
+		return Protocol.OK;
+	}
+
+	/** Update the in-memory state with a decision, new or replayed from the ledger, recorded at sequence **/
+	private void recordDecision(long sequence, long itemID, long cents, long creditCardNumber, int result) {
+		if(result == Protocol.VOID_TRANSACTION) { // itemID is the sequence of the approval voided
+			approvals.remove(itemID);
+			voids++;
+			approved--;
+			approvedCents -= cents;
+			return;
+		}
+		transactions++;
+		if(result == Protocol.OK) {
+			approvals.put(sequence, new Approval(itemID, cents, creditCardNumber));
+			approved++;
+			approvedCents += cents;
+		}
+	}
+
+	/** Update the in-memory state with a decision replayed from the ledger, debiting the approved
+	 * ones and crediting the voided ones back **/
+	private void replayDecision(long sequence, long itemID, long cents, long creditCardNumber, int result) {
+		if(result == Protocol.VOID_TRANSACTION && !approvals.containsKey(itemID)) {
+			return; // a void record not naming an approval credits nothing
+		}
+		if(result == Protocol.OK && accounts != null) {
+			accounts.replayDebit(creditCardNumber, cents);
+		} else if(result == Protocol.VOID_TRANSACTION && accounts != null) {
+			accounts.credit(creditCardNumber, cents);
+		}
+		recordDecision(sequence, itemID, cents, creditCardNumber, result);
+	}
+
+	/** Load the balances of the cards, if there is an accounts file; the ledger's debits are replayed on top **/
+	private void openAccounts() {
+		if(!new File(ACCOUNTS_FILE).isFile()) {
+			System.out.println("No accounts file " + ACCOUNTS_FILE + ": odd itemIDs are approved");
+			return;
+		}
+		try {
+			accounts = Accounts.load(ACCOUNTS_FILE);
+		} catch (IOException | NumberFormatException e) {
+			System.err.print("Bank unable to load accounts " + ACCOUNTS_FILE + ": " + e.getMessage() + "\n");
+			System.exit(1);
+		}
+		System.out.println("Accounts loaded: " + accounts.size() + " cards");
+	}
+
+	/** Open the ledger and rebuild the in-memory state from it **/
+	private void openLedger() {
+		long start = System.nanoTime();
+		try {
+			ledger = Ledger.open(LEDGER_FILE,
+					(sequence, itemID, cents, creditCardNumber, result) -> replayDecision(sequence, itemID,
+							cents, creditCardNumber, result));
+		} catch (IOException e) {
+			System.err.print("Bank unable to open ledger " + LEDGER_FILE + ": " + e.getMessage() + "\n");
+			System.exit(1);
+		}
+		System.out.println("Ledger replayed: " + transactions + " transactions, " + approved + " approved ($ "
+				+ approvedCents / 100.0 + "), " + voids + " voided in " + (System.nanoTime() - start) / 1000000
+				+ " ms");
 	}
 
 	/** Register Bank server with NameServer **/
 	private void register() {
+		ReliableChannel nameServer = null;
 		try {
-			// construct datagram socket
-			DatagramSocket clientSocket = new DatagramSocket();
-			// set server's ip address
-			InetAddress IPAddress = InetAddress.getByName(NAMESERVER_IP);
-			// set buffers
-			ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			/* Message format: serverName + "\n" + serverIP + "\n" + serverPort */
-			String command = "Bank" + "\n" + InetAddress.getLocalHost().getHostAddress() + "\n" + bankPort + "\n";
-			DatagramPacket sendPacket = createSendPacket(IPAddress, nameServerPort, REGISTER, command);
-			DatagramPacket receivePacket = implementReliability(clientSocket, sendPacket, 
-					"Registration's info is sent to NameServer");
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			int result = receiveBuffer.getInt();
-			String message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
-			if(result == SUCCESS) {
+			nameServer = new ReliableChannel("Bank", TIMEOUT, true);
+			nameServer.start();
+			// set buffer
+			ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+			/* Message format: serverName, serverIP, serverPort */
+			Protocol.begin(sendBuffer, Protocol.REGISTER, 0);
+			Protocol.putString(sendBuffer, "Bank");
+			String ip = InetAddress.getLocalHost().getHostAddress();
+			Protocol.putString(sendBuffer, ip);
+			sendBuffer.putInt(bankPort);
+			SocketAddress nameServerAddress = new InetSocketAddress(NAMESERVER_IP, nameServerPort);
+			ByteBuffer receiveBuffer = nameServer.call(nameServerAddress,
+					Protocol.end(sendBuffer), "Registration's info is sent to NameServer");
+			int result = Protocol.getType(receiveBuffer);
+			/* Message format: message, lease time */
+			String message = Protocol.getString(receiveBuffer);
+			if(result == Protocol.SUCCESS) {
 				System.out.println(message);
-			} else if(result == FAIL) {
+				// renew the registration's lease from now on
+				new Heartbeat(datagramChannel, nameServerAddress, timingWheel, "Bank", ip, bankPort,
+						receiveBuffer.getInt()).start();
+			} else if(result == Protocol.FAIL) {
 				System.err.print("Bank registration to NameServer failed\n");
 				System.exit(1);
 			}
-			// close up
-			clientSocket.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-	}
-
-	/** Simulate the packet loss 
-	 * @throws IOException */
-	private void simulatePacketLoss(DatagramSocket ds, DatagramPacket dp, String message) throws IOException {
-		double random = Math.random();
-		System.out.println(message);
-		if(random >= 0.5) {
-			ds.send(dp);
+			System.err.print("Bank unable to reach NameServer: " + e.getMessage() + "\n");
+			System.exit(1);
+		} finally {
+			// close up
+			if (nameServer != null) {
+				nameServer.close();
+			}
 		}
 	}
 
+	/** An approval that can still be voided **/
+	private static class Approval {
+		final long itemID;
+		final long cents;
+		final long creditCardNumber;
 
-	/** Implements communication reliability. The sender process set a timeout for an ACK
-	 * arrival and retransmit the message if the timeout expires.
-	 * @throws IOException   
-	 * @return return packet received from server */
-	private DatagramPacket implementReliability(DatagramSocket clientSocket, 
-			DatagramPacket sendPacket, String message) throws IOException {
-		long startTime = 0;
-		byte[] receiveData = new byte[BUFFER_SIZE];
-		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-		Thread thread = new Thread( new Runnable() {
-			@Override
-			public void run() {
-				try {
-					// receive reply message from server
-					clientSocket.receive(receivePacket);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		});
-
-		// send and simulate packet loss
-		simulatePacketLoss(clientSocket, sendPacket, "  >>> " + message);
-		startTime = System.currentTimeMillis();
-		thread.start();
-		while(thread.isAlive()) {
-			if(System.currentTimeMillis() - startTime > TIMEOUT && thread.isAlive()) {
-				System.out.println("Timeout expired");
-				// send and simulate packet loss
-				simulatePacketLoss(clientSocket, sendPacket, "RETRANSMIT: " + message);
-				startTime = System.currentTimeMillis();
-			}
+		Approval(long itemID, long cents, long creditCardNumber) {
+			this.itemID = itemID;
+			this.cents = cents;
+			this.creditCardNumber = creditCardNumber;
 		}
-		return receivePacket;
-	}
-	
-	/** Create a send packet */
-	private DatagramPacket createSendPacket(InetAddress iPAddress, int port, int typeCommand, String command) {
-			byte[] sendData = new byte[BUFFER_SIZE];
-			ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			sendBuffer.putInt(typeCommand);
-			sendBuffer.put(Charset.forName("UTF-8").encode(command));
-			sendBuffer.flip();
-			sendData = sendBuffer.array();
-			// send the message to server
-			DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, iPAddress, port);
-			return sendPacket;
 	}
 }
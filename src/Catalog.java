@@ -0,0 +1,107 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Store's stock, kept as columns of primitives: item IDs and prices in cents,
+ * in the order of the stock file, plus an open-addressing hash table from item
+ * ID to position. An item costs 24 to 32 bytes whatever the size of the
+ * catalog, and looking one up allocates nothing. A catalog is never modified
+ * once loaded, so it can be shared freely; every catalog loaded gets a new
+ * version number, so data derived from a catalog can tell whether it is current.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class Catalog {
+
+	private static final AtomicLong versions = new AtomicLong();
+
+	private final long version = versions.incrementAndGet();
+	private final long[] ids;
+	private final long[] cents;
+	private final int size;
+	/* position + 1 of the item hashed to each slot, 0 for an empty slot */
+	private final int[] table;
+	private final int mask;
+
+	private Catalog(long[] ids, long[] cents, int size) {
+		this.ids = ids;
+		this.cents = cents;
+		this.size = size;
+		// at most half full, so a lookup rarely probes more than one or two slots
+		int capacity = Integer.highestOneBit(Math.max(2, size)) << 2;
+		this.table = new int[capacity];
+		this.mask = capacity - 1;
+		for (int position = 0; position < size; position++) {
+			int slot = (int) Hashing.mix(ids[position]) & mask;
+			while (table[slot] != 0 && ids[table[slot] - 1] != ids[position]) {
+				slot = (slot + 1) & mask;
+			}
+			// a repeated item ID keeps its first position
+			if (table[slot] == 0) {
+				table[slot] = position + 1;
+			}
+		}
+	}
+
+	/** Load a stock file of "itemID price" lines **/
+	public static Catalog load(String stockFileName) throws IOException {
+		long[] ids = new long[1024];
+		long[] cents = new long[1024];
+		int size = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(stockFileName));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space <= 0) {
+					continue;
+				}
+				if (size == ids.length) {
+					ids = Arrays.copyOf(ids, size * 2);
+					cents = Arrays.copyOf(cents, size * 2);
+				}
+				int end = line.indexOf(' ', space + 1);
+				ids[size] = Long.parseLong(line.substring(0, space));
+				cents[size] = Math.round(Double.parseDouble(line.substring(space + 1, end < 0 ? line.length() : end)) * 100);
+				size++;
+			}
+		} finally {
+			reader.close();
+		}
+		// drop the room left by the last doubling
+		return new Catalog(Arrays.copyOf(ids, size), Arrays.copyOf(cents, size), size);
+	}
+
+	/** Position of an item, -1 if it is not in the catalog **/
+	public int indexOf(long itemID) {
+		for (int slot = (int) Hashing.mix(itemID) & mask;; slot = (slot + 1) & mask) {
+			int position = table[slot] - 1;
+			if (position < 0 || ids[position] == itemID) {
+				return position;
+			}
+		}
+	}
+
+	public long getID(int position) {
+		return ids[position];
+	}
+
+	/** Price of the item at a position, in cents **/
+	public long getCents(int position) {
+		return cents[position];
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/** Number of items **/
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+
+/**
+ * Multi-datagram transfer of content too large for one datagram. A reply
+ * flagged Protocol.FLAG_CHUNKED announces a transfer ID, the length and the
+ * number of chunks. The receiver then drives the transfer with CONTENT_ACK
+ * datagrams, relayed by Store:
+ *
+ *   CONTENT_ACK:   transferID (long) | next expected chunk (int) | SACK bitmap (long) | window (short)
+ *   CONTENT_CHUNK: transferID (long) | sequence number (int) | up to CHUNK_SIZE bytes
+ *
+ * Bit i of the SACK bitmap means chunk next + 1 + i has arrived out of order.
+ * For every acknowledgement the sender sends the chunks of the window the
+ * receiver still lacks: chunks never sent, and chunks whose last copy is
+ * older than RETRANSMIT_AFTER milliseconds. Chunks that arrived are never sent
+ * again. The receiver acknowledges every chunk and repeats its last
+ * acknowledgement every ACK_INTERVAL milliseconds while nothing arrives.
+ * Only a window of chunks is ever buffered, by the receiver.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class ChunkedTransfer {
+
+	public static final int BUFFER_SIZE = 1024;
+
+	/* payload bytes of a chunk: a datagram stays within BUFFER_SIZE */
+	public static final int CHUNK_SIZE = 1000;
+	/* larger content is sent in chunks rather than inline */
+	public static final int INLINE_LIMIT = 900;
+	/* chunks in flight at most, limited by the 64-bit SACK bitmap */
+	public static final int WINDOW = Math.min(64, Integer.getInteger("transfer.window", 32));
+	public static final long RETRANSMIT_AFTER = Long.getLong("transfer.retransmit", 200);
+	public static final long ACK_INTERVAL = 200;
+	/* a transfer nobody has heard from for this long is abandoned */
+	public static final long TRANSFER_TIMEOUT = 10000;
+	/* fraction of chunks dropped on purpose, to exercise retransmission (system property transfer.lossRate) */
+	public static final double LOSS_RATE = Double.parseDouble(System.getProperty("transfer.lossRate", "0"));
+
+	private ChunkedTransfer() {
+	}
+
+	public static int chunkCount(long length) {
+		return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/** Sending side of a transfer; driven by the acknowledgements it receives **/
+	public static class Sender {
+		private static final long NEVER = Long.MIN_VALUE;
+
+		private final long transferID;
+		private final ByteBuffer data;
+		private final int chunkCount;
+		/* when each chunk was last sent, NEVER if it has not been */
+		private final long[] sentAt;
+		private final ByteBuffer packet = ByteBuffer.allocate(BUFFER_SIZE);
+		private long lastActivity = TimingWheel.now();
+
+		/**
+		 * @param data content to send, from its position to its limit
+		 */
+		public Sender(long transferID, ByteBuffer data) {
+			this.transferID = transferID;
+			this.data = data.slice();
+			this.chunkCount = chunkCount(this.data.remaining());
+			this.sentAt = new long[chunkCount];
+			Arrays.fill(sentAt, NEVER);
+		}
+
+		public long getTransferID() {
+			return transferID;
+		}
+
+		public long getLength() {
+			return data.limit();
+		}
+
+		public int getChunkCount() {
+			return chunkCount;
+		}
+
+		public long getLastActivity() {
+			return lastActivity;
+		}
+
+		/** Handle an acknowledgement positioned after its transfer ID: send the chunks of the
+		 * window the receiver lacks
+		 * @return true once every chunk has been acknowledged **/
+		public boolean onAck(DatagramChannel channel, SocketAddress target, ByteBuffer ack) throws IOException {
+			int next = ack.getInt();
+			long sack = ack.getLong();
+			int window = Math.min(64, ack.getShort());
+			lastActivity = TimingWheel.now();
+			if (next >= chunkCount) {
+				return true;
+			}
+			int end = (int) Math.min(chunkCount, (long) next + window);
+			for (int seq = next; seq < end; seq++) {
+				int bit = seq - next - 1;
+				if (bit >= 0 && (sack & (1L << bit)) != 0) { // already received out of order
+					continue;
+				}
+				if (sentAt[seq] != NEVER && lastActivity - sentAt[seq] < RETRANSMIT_AFTER) { // still in flight
+					continue;
+				}
+				if (sendChunk(channel, target, seq)) {
+					sentAt[seq] = lastActivity;
+				}
+			}
+			return false;
+		}
+
+		/** @return false if the channel had no room for the chunk **/
+		private boolean sendChunk(DatagramChannel channel, SocketAddress target, int seq) throws IOException {
+			ByteBuffer chunk = data.duplicate();
+			chunk.position(seq * CHUNK_SIZE);
+			chunk.limit(Math.min(data.limit(), (seq + 1) * CHUNK_SIZE));
+			Protocol.begin(packet, Protocol.CONTENT_CHUNK, 0);
+			packet.putLong(transferID);
+			packet.putInt(seq);
+			packet.put(chunk);
+			Protocol.end(packet);
+			if (Math.random() < LOSS_RATE) {
+				return true;
+			}
+			return channel.send(packet, target) > 0;
+		}
+	}
+
+	/** Receive a transfer through relay, writing the chunks to out in order as they arrive.
+	 * Blocks until every chunk has arrived.
+	 * @throws IOException if no chunk arrives for TRANSFER_TIMEOUT milliseconds **/
+	public static void receive(SocketAddress relay, long transferID, int chunkCount, OutputStream out)
+			throws IOException {
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.setSoTimeout((int) ACK_INTERVAL);
+			/* chunks received out of order, chunk seq in slot seq % WINDOW */
+			byte[][] pending = new byte[WINDOW][];
+			DatagramPacket datagram = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+			int next = 0;
+			long lastArrival = TimingWheel.now();
+			sendAck(socket, relay, transferID, next, pending);
+			while (next < chunkCount) {
+				try {
+					datagram.setLength(BUFFER_SIZE);
+					socket.receive(datagram);
+				} catch (SocketTimeoutException e) {
+					if (TimingWheel.now() - lastArrival > TRANSFER_TIMEOUT) {
+						throw new IOException("transfer " + transferID + " stalled at chunk " + next + " of "
+								+ chunkCount);
+					}
+					sendAck(socket, relay, transferID, next, pending);
+					continue;
+				}
+				ByteBuffer chunk = ByteBuffer.wrap(datagram.getData(), 0, datagram.getLength());
+				if (!Protocol.isValid(chunk) || Protocol.getType(chunk) != Protocol.CONTENT_CHUNK
+						|| chunk.getLong() != transferID) {
+					continue;
+				}
+				lastArrival = TimingWheel.now();
+				int seq = chunk.getInt();
+				if (seq >= next && seq < next + WINDOW && seq < chunkCount && pending[seq % WINDOW] == null) {
+					byte[] bytes = new byte[chunk.remaining()];
+					chunk.get(bytes);
+					pending[seq % WINDOW] = bytes;
+				}
+				while (next < chunkCount && pending[next % WINDOW] != null) {
+					out.write(pending[next % WINDOW]);
+					pending[next % WINDOW] = null;
+					next++;
+				}
+				sendAck(socket, relay, transferID, next, pending);
+			}
+			out.flush();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void sendAck(DatagramSocket socket, SocketAddress relay, long transferID, int next,
+			byte[][] pending) throws IOException {
+		long sack = 0;
+		for (int i = 0; i < WINDOW - 1; i++) {
+			if (pending[(next + 1 + i) % WINDOW] != null) {
+				sack |= 1L << i;
+			}
+		}
+		ByteBuffer ack = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(ack, Protocol.CONTENT_ACK, 0);
+		ack.putLong(transferID);
+		ack.putInt(next);
+		ack.putLong(sack);
+		ack.putShort((short) WINDOW);
+		Protocol.end(ack);
+		socket.send(new DatagramPacket(ack.array(), ack.limit(), relay));
+	}
+}
@@ -1,9 +1,8 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -17,34 +16,48 @@ import java.nio.charset.Charset;
 public class Client {
 
 	public final int BUFFER_SIZE = 1024;
-	public final int REGISTER = 1;
-	public final int LOOKUP = 2;
-	public final int SUCCESS = 3;
-	public final int FAIL = 4;
-	public final int GET_BANK_INFO = 5;
-	public final int GET_CONTENT_INFO = 6;
-	public final int OK = 7;
-	public final int NOT_OK = 8;
-	public final int VALIDATE_TRANSACTION = 9;
-	public final int CONTENT_REQUEST = 10;
-	public final int LIST_ITEMS_REQUEST = 11;
-	public final int BUY_REQUEST = 12;
 
 	public final String NAMESERVER_IP = "127.0.0.1";
 	public final long TIMEOUT = 1000;
+	/* items per page of the list of items, 0 for as many as Store fits in a datagram */
+	public final int PAGE_SIZE = Integer.getInteger("client.pageSize", 0);
+	/* retransmissions to a Store instance before a list request fails over to the next one */
+	public final int FAILOVER_RETRIES = 2;
 
 	private int requestNumber;
+	/* item bought by its ID, when the request number is too large to be an order number */
+	private long itemID;
 	private int nameServerPort = 21000; // default
-	private String storeIP;
-	private int storePort;
-	private String creditCardNumber = "1234567891234567";
+	/* every Store instance; requests are spread across them */
+	private List<InetSocketAddress> storeAddresses;
+	private boolean isCachedAddress;
+	/* the Store instance that answered, which relays chunked content */
+	private InetSocketAddress activeStore;
+	/* how a Store instance is chosen: round-robin, or card to always use the instance
+	 * the credit card number hashes to */
+	private String storeSelection = System.getProperty("client.storeSelection", "round-robin");
+	private static final AtomicInteger storeCursor = new AtomicInteger((int) (Math.random() * Integer.MAX_VALUE));
+	private long creditCardNumber = 1234567891234567L;
+	private ReliableChannel channel;
+	private Resolver resolver;
 
 
 	public Client(String[] args) {
 
 		validateArguments(args);
+		try {
+			channel = new ReliableChannel("Client", TIMEOUT, false);
+			channel.start();
+			// NameServer answers are cached across runs in a small file
+			resolver = new Resolver(channel, new InetSocketAddress(NAMESERVER_IP, nameServerPort),
+					System.getProperty("resolver.cacheFile", ".nameserver-cache"));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
 		getStoreServerInfo();
 		connectToStore();
+		channel.close();
 	}
 
 
@@ -59,54 +72,95 @@ public class Client {
 	/** Connect to Store server **/
 	private void connectToStore() {		
 		try {
-			// construct datagram socket
-			DatagramSocket clientSocket = new DatagramSocket();
-			// set server's ip address
-			InetAddress IPAddress = InetAddress.getByName(storeIP);
-			// set buffers
-			ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			String command = "";
-			int result = 0;
+			// set buffer
+			ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
 			int typeCommand = 0;
 			if(requestNumber == 0) { // 0 means that a list of items will be requested from Store
-				typeCommand = LIST_ITEMS_REQUEST;
-				command = "list of items";
+				listItems();
+				return;
 			} else if(requestNumber >= 1 && requestNumber <= 10) { // 1 <= requestNumber <= 10 means that buy request
-				typeCommand = BUY_REQUEST;
-				command = requestNumber + "\n" + creditCardNumber + "\n";
+				typeCommand = Protocol.BUY_REQUEST;
+				/* Message format: orderNumber, creditCardNumber */
+				Protocol.begin(sendBuffer, typeCommand, 0);
+				sendBuffer.putInt(requestNumber);
+				sendBuffer.putLong(creditCardNumber);
+			} else { // an item ID: buy request naming the item
+				typeCommand = Protocol.BUY_BY_ID;
+				/* Message format: itemID, creditCardNumber */
+				Protocol.begin(sendBuffer, typeCommand, 0);
+				sendBuffer.putLong(itemID);
+				sendBuffer.putLong(creditCardNumber);
 			}
-			DatagramPacket sendPacket = createSendPacket(IPAddress, storePort, typeCommand, command);
-			DatagramPacket receivePacket = implementReliability(clientSocket, sendPacket, "Request is sent"); 
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			result = receiveBuffer.getInt();
-			String message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
-			receiveBuffer.clear();
-
-			if(typeCommand == LIST_ITEMS_REQUEST) {
-				System.out.println(message);
-			} else if(typeCommand == BUY_REQUEST) {
-				if(result == SUCCESS) {
-					/* Message format: itemID + "\n" + content + "\n" + itemPrice */
-					String[] purchasedItem = message.split("\n");
-					String id = purchasedItem[0];
-					String content = purchasedItem[1];
-					String price = purchasedItem[2];
+			ByteBuffer receiveBuffer = callStore(Protocol.end(sendBuffer), false);
+			int result = Protocol.getType(receiveBuffer);
+
+			if(typeCommand == Protocol.BUY_REQUEST || typeCommand == Protocol.BUY_BY_ID) {
+				if(result == Protocol.SUCCESS && (Protocol.getFlags(receiveBuffer) & Protocol.FLAG_CHUNKED) != 0) {
+					/* Message format: itemID, transferID, length, number of chunks, itemPrice;
+					 * the content is fetched in chunks through the Store */
+					long id = receiveBuffer.getLong();
+					long transferID = receiveBuffer.getLong();
+					receiveBuffer.getLong();
+					int chunkCount = receiveBuffer.getInt();
+					float price = Protocol.getPrice(receiveBuffer);
+					System.out.print(id + " ($ " + price + ") CONTENT ");
+					ChunkedTransfer.receive(activeStore, transferID, chunkCount, System.out);
+					System.out.print("\n");
+				} else if(result == Protocol.SUCCESS) {
+					/* Message format: itemID, content, itemPrice */
+					long id = receiveBuffer.getLong();
+					String content = Protocol.getString(receiveBuffer);
+					float price = Protocol.getPrice(receiveBuffer);
 					System.out.print(id + " ($ " + price + ") CONTENT " + content + "\n");
-				} else if(result == FAIL) {
-					/* Message format: itemID + "\n" + "transaction aborted" */
-					String[] info = message.split("\n");
-					System.out.print(info[0] + " " + info[1] + "\n");
+				} else if(result == Protocol.FAIL) {
+					/* Message format: itemID */
+					long id = receiveBuffer.getLong();
+					System.out.print(id + " " + "transaction aborted" + "\n");
 				}
 			}
-			// close up
-			clientSocket.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			System.err.print("Store is not responding: " + (e.getCause() != null ? e.getCause() : e).getMessage() + "\n");
+			System.exit(1);
 		}
 
 	}
 
+	/** Request the list of items from Store page by page, printing each page as it arrives **/
+	private void listItems() throws IOException {
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		int number = 0;
+		long cursor = 0;
+		boolean more = true;
+		while(more) {
+			/* Message format: page size, then cursor (the last itemID of the previous page),
+			 * left out for the first page */
+			Protocol.begin(sendBuffer, Protocol.LIST_ITEMS_REQUEST, 0);
+			sendBuffer.putShort((short) PAGE_SIZE);
+			if(number > 0) {
+				sendBuffer.putLong(cursor);
+			}
+			ByteBuffer receiveBuffer = callStore(Protocol.end(sendBuffer), true);
+			if(Protocol.getType(receiveBuffer) == Protocol.FAIL) {
+				/* Message format: cursor */
+				System.err.print("Item " + receiveBuffer.getLong() + " left the stock while listing\n");
+				System.exit(1);
+			}
+			/* Message format: number of items, then itemID and itemPrice of each item, then cursor
+			 * of the next page; flagged FLAG_MORE unless it is the last page */
+			int count = receiveBuffer.getShort() & 0xFFFF;
+			StringBuilder message = new StringBuilder();
+			for(int i = 0; i < count; i++) {
+				long id = receiveBuffer.getLong();
+				float price = Protocol.getPrice(receiveBuffer);
+				message.append(++number).append(". ").append(id).append(" ").append(price).append("\n");
+			}
+			System.out.print(message);
+			cursor = receiveBuffer.getLong();
+			more = (Protocol.getFlags(receiveBuffer) & Protocol.FLAG_MORE) != 0 && count > 0;
+		}
+		System.out.println();
+	}
+
 	/** Validate arguments **/
 	private void validateArguments(String[] args) {
 		if(args.length != 2) {
@@ -115,9 +169,15 @@ public class Client {
 		}
 
 		try {
-			requestNumber = Integer.parseInt(args[0]);
+			long request = Long.parseLong(args[0]);
 			nameServerPort = Integer.parseInt(args[1]);
-			if (requestNumber < 0 || requestNumber > 10){
+			if (request > 10) { // larger numbers are item IDs
+				itemID = request;
+				requestNumber = -1;
+			} else {
+				requestNumber = (int) request;
+			}
+			if (request < 0){
 				System.err.print("Invalid command line arguments\n");
 				System.exit(1);
 			}
@@ -132,100 +192,99 @@ public class Client {
 		}
 	}
 
-	/** Gets Store server's info from NameServer.
-	 * Store's IP is stored in global variable storeIP.
-	 * Store's port is stored in global variable storePort. **/
-	private void getStoreServerInfo() {		
+	/** Send a request to Store. If the cached Store instances all stopped answering,
+	 * Store is resolved again with NameServer and the request is resent under the
+	 * same request ID, so a Store that did receive it answers from its reply cache
+	 * instead of charging the card a second time.
+	 * @param idempotent whether the request may go to several instances: a list
+	 * request fails over, a purchase stays with one instance **/
+	private ByteBuffer callStore(ByteBuffer sendBuffer, boolean idempotent) throws IOException {
+		int requestID = channel.newRequestID();
+		InetSocketAddress tried = null;
 		try {
-			// construct datagram socket
-			DatagramSocket clientSocket = new DatagramSocket();
-			// set server's ip address
-			InetAddress IPAddress = InetAddress.getByName(NAMESERVER_IP);
-			// set buffers
-			ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			/* Message format: serverName + "\n" + serverIP + "\n" + serverPort */
-			String command = "Store" + "\n";
-			DatagramPacket sendPacket = createSendPacket(IPAddress, nameServerPort, LOOKUP, command);
-			DatagramPacket receivePacket = implementReliability(clientSocket, sendPacket, 
-					"Store server's info request is sent to NameServer.");
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			int result = receiveBuffer.getInt();
-			String message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
-			if(result == SUCCESS) {
-				/* Message format: serverName + "\n" + serverIP + "\n" + serverPort */
-				String[] serverInfo = message.split("\n");
-				storeIP = serverInfo[1];
-				storePort = Integer.parseInt(serverInfo[2]);
-			} else if(result == FAIL) {
-				System.err.print("Store has not registered\n");
-				System.exit(1);
+			if(idempotent) {
+				return callStoreInstances(sendBuffer, requestID);
 			}
-			// close up
-			clientSocket.close();
+			tried = storeAddresses.get(chooseStore());
+			return callStoreInstance(tried, sendBuffer, requestID);
 		} catch (IOException e) {
-			e.printStackTrace();
+			if(!isCachedAddress) {
+				throw e;
+			}
+			resolver.invalidate("Store");
+			getStoreServerInfo();
+			if(idempotent) {
+				return callStoreInstances(sendBuffer, requestID);
+			}
+			// the instance that may have taken the purchase, if it is still registered
+			if(!storeAddresses.contains(tried)) {
+				tried = storeAddresses.get(chooseStore());
+			}
+			return callStoreInstance(tried, sendBuffer, requestID);
 		}
+	}
 
+	/** Send a request to one Store instance with the full retransmission budget **/
+	private ByteBuffer callStoreInstance(InetSocketAddress storeAddress, ByteBuffer sendBuffer, int requestID)
+			throws IOException {
+		ByteBuffer receiveBuffer = channel.call(storeAddress, sendBuffer, "Request is sent",
+				ReliableChannel.MAX_RETRIES, requestID);
+		activeStore = storeAddress;
+		return receiveBuffer;
 	}
 
-	/** Simulate the packet loss 
-	 * @throws IOException */
-	private void simulatePacketLoss(DatagramSocket ds, DatagramPacket dp, String message) throws IOException {
-		double random = Math.random();
-		//System.out.println(message);
-		if(random >= 0.5) {
-			ds.send(dp);
+	/** Send an idempotent request to the chosen Store instance, failing over to the
+	 * next instance after a few retransmissions. Only the last instance tried from a
+	 * fresh NameServer answer gets the full retransmission budget. **/
+	private ByteBuffer callStoreInstances(ByteBuffer sendBuffer, int requestID) throws IOException {
+		int count = storeAddresses.size();
+		int first = chooseStore();
+		IOException failure = null;
+		for(int i = 0; i < count; i++) {
+			InetSocketAddress storeAddress = storeAddresses.get((first + i) % count);
+			int retries = (i == count - 1 && !isCachedAddress) ? ReliableChannel.MAX_RETRIES : FAILOVER_RETRIES;
+			try {
+				ByteBuffer receiveBuffer = channel.call(storeAddress, sendBuffer, "Request is sent", retries,
+						requestID);
+				activeStore = storeAddress;
+				if(failure != null) {
+					// the next run resolves Store again instead of trying the silent instance
+					resolver.invalidate("Store");
+				}
+				return receiveBuffer;
+			} catch (IOException e) {
+				failure = e;
+			}
 		}
+		throw failure;
 	}
 
+	/** Index of the Store instance to try first **/
+	private int chooseStore() {
+		int count = storeAddresses.size();
+		if(storeSelection.equals("card")) {
+			// the same card always goes to the same instance while the instances do not change
+			return (int) ((creditCardNumber ^ (creditCardNumber >>> 32)) & Integer.MAX_VALUE) % count;
+		}
+		return (storeCursor.getAndIncrement() & Integer.MAX_VALUE) % count;
+	}
 
-	/** Implements communication reliability. The sender process set a timeout for an ACK
-	 * arrival and retransmit the message if the timeout expires.
-	 * @throws IOException   
-	 * @return return packet received from server */
-	private DatagramPacket implementReliability(DatagramSocket clientSocket, 
-			DatagramPacket sendPacket, String message) throws IOException {
-		long startTime = 0;
-		byte[] receiveData = new byte[BUFFER_SIZE];
-		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-		Thread thread = new Thread( new Runnable() {
-			@Override
-			public void run() {
-				try {
-					// receive reply message from server
-					clientSocket.receive(receivePacket);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		});
-
-		// send and simulate packet loss
-		simulatePacketLoss(clientSocket, sendPacket, message);
-		startTime = System.currentTimeMillis();
-		thread.start();
-		while(thread.isAlive()) {
-			if(System.currentTimeMillis() - startTime > TIMEOUT && thread.isAlive()) {
-				//System.out.println("Timeout expired");
-				// send and simulate packet loss
-				simulatePacketLoss(clientSocket, sendPacket, "RETRANSMIT: " + message);
-				startTime = System.currentTimeMillis();
+	/** Gets the info of every Store server, from the resolver's cache or from NameServer.
+	 * Store's addresses are stored in global variable storeAddresses. **/
+	private void getStoreServerInfo() {		
+		try {
+			isCachedAddress = resolver.isCached("Store");
+			storeAddresses = resolver.resolveAll("Store");
+			if(storeAddresses.isEmpty()) {
+				System.err.print("Store has not registered\n");
+				System.exit(1);
 			}
+		} catch (IOException e) {
+			System.err.print("NameServer is not responding: "
+					+ (e.getCause() != null ? e.getCause() : e).getMessage() + "\n");
+			System.exit(1);
 		}
-		return receivePacket;
-	}
 
-	/** Create a send packet */
-	private DatagramPacket createSendPacket(InetAddress iPAddress, int port, int typeCommand, String command) {
-		byte[] sendData = new byte[BUFFER_SIZE];
-		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		sendBuffer.putInt(typeCommand);
-		sendBuffer.put(Charset.forName("UTF-8").encode(command));
-		sendBuffer.flip();
-		sendData = sendBuffer.array();
-		// send the message to server
-		DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, iPAddress, port);
-		return sendPacket;
 	}
 
 	/**Check whether the port number in the range from 1024 to 65535**/
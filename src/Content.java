@@ -1,19 +1,27 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 
 
@@ -28,21 +36,11 @@ import java.util.List;
 public class Content {
 
 	public final int BUFFER_SIZE = 1024;
-	public final int REGISTER = 1;
-	public final int LOOKUP = 2;
-	public final int SUCCESS = 3;
-	public final int FAIL = 4;
-	public final int GET_BANK_INFO = 5;
-	public final int GET_CONTENT_INFO = 6;
-	public final int OK = 7;
-	public final int NOT_OK = 8;
-	public final int VALIDATE_TRANSACTION = 9;
-	public final int CONTENT_REQUEST = 10;
-	public final int LIST_ITEMS_REQUEST = 11;
-	public final int BUY_REQUEST = 12;
 
 	public final String NAMESERVER_IP = "127.0.0.1";
 	public final long TIMEOUT = 1000;
+	/* NameServer is asked for the Content servers sharing the catalog every MEMBERS_REFRESH milliseconds */
+	public final long MEMBERS_REFRESH = Long.getLong("content.membersRefresh", 10000);
 
 	// set Server parameters
 	private int contentPort = 23000; // default
@@ -50,14 +48,43 @@ public class Content {
 	private Selector selector = null;
 	private DatagramChannel datagramChannel = null;
 	private DatagramSocket datagramSocket = null;
+	/* replies already sent, so retransmitted requests are not executed twice */
+	private ReplyCache replyCache = new ReplyCache();
+	/* heartbeats renewing the registration with NameServer */
+	private TimingWheel timingWheel = new TimingWheel(100, 512);
 	private String contentFileName;
-	private List<ContentItem> items = new ArrayList<Content.ContentItem>();
+	/* catalog, memory-mapped from files built out of the content file; replaced as a whole
+	 * when the content file changes, so a request reads one consistent catalog without locking */
+	private final AtomicReference<ContentStore> contentStore = new AtomicReference<ContentStore>();
+	/* Content servers sharing the catalog, given as "ip:port,ip:port..." by the system property
+	 * content.members at startup, then the ones registered with NameServer, as Store's ring;
+	 * this server keeps only the items the ring assigns to it. Replaced as a whole when a server
+	 * joins or leaves. Null when the property is not set: every item is kept. */
+	private volatile HashRing<String> shardRing = null;
+	private String shardID;
+	/* content too large for one datagram, being sent in chunks, keyed by transfer ID */
+	private Map<Long, ChunkedTransfer.Sender> transfers = new HashMap<Long, ChunkedTransfer.Sender>();
+	/* work handed to the event loop by the file watcher's thread */
+	private Queue<Runnable> loopTasks = new ConcurrentLinkedQueue<Runnable>();
+	/* latency of each command, and counters, answered to STATS */
+	private Stats stats;
+	private LongAdder malformed;
 
 	public Content(String[] args) {
 
 		validateArguments(args);
-		items = buildItemList();
+		buildShardRing();
+		try {
+			contentStore.set(openContentStore());
+		} catch (IOException e) {
+			System.err.print("Content unable to read " + contentFileName + ": " + e.getMessage() + "\n");
+			System.exit(1);
+		}
+		initStats();
 		serverInit();
+		startMembersRefresh();
+		// contents change without a restart
+		new FileWatcher(contentFileName, () -> reloadContentStore()).start();
 		handleRequests();
 	}
 
@@ -133,10 +160,30 @@ public class Content {
 		}
 	}
 
+	/** Create the statistics, read by the STATS command **/
+	private void initStats() {
+		stats = new Stats("Content " + contentPort);
+		malformed = stats.counter("malformed datagrams");
+		stats.gauge("duplicates", replyCache::getHits);
+		stats.gauge("chunked transfers in progress", () -> transfers.size());
+		stats.startDump();
+	}
+
+	/** Register the channel for writing a reply; the read buffer holding it is re-attached once sent **/
+	private void registerReply(DatagramChannel dc, SocketAddress sa, ByteBuffer readBuffer) throws ClosedChannelException {
+		List<Object> objList = new ArrayList<Object>();
+		objList.add(sa);
+		objList.add(readBuffer);
+		// set register status to WRITE
+		dc.register(selector, SelectionKey.OP_WRITE, objList);
+	}
+
 	/** Handle requests, queries from Clients **/
 	private void handleRequests() {
 		try {
-			while (selector.select() > 0) {
+			while (selector.isOpen()) {
+				// sleep until a datagram arrives or the next heartbeat is due
+				selector.select(timingWheel.nextTimeout());
 				for (SelectionKey key : selector.selectedKeys()) {
 					// test whether this key's channel is ready for reading from Client
 					if (key.isReadable()) {
@@ -144,36 +191,86 @@ public class Content {
 						ByteBuffer readBuffer = (ByteBuffer) key.attachment();
 						DatagramChannel dc = (DatagramChannel) key.channel();
 						SocketAddress sa = dc.receive(readBuffer);
+						long received = System.nanoTime();
 						readBuffer.flip();
-						int typeCommand = readBuffer.getInt();
-						String message = Charset.forName("UTF-8").decode(readBuffer).toString();
-						readBuffer.clear();
-
-						int result = FAIL;
-						// content request
-						if(typeCommand == CONTENT_REQUEST) {
-							/* Message format: itemID*/
-							String[] temp = message.split("\n");
-							long itemID = Long.parseLong(temp[0]);
-							message = "";
-							for(int i = 0; i < items.size(); i++) {
-								if(items.get(i).getID() == itemID) {
-									/* Form message:
-									 * message format: itemID + "\n" + content*/
-									message = itemID + "\n" + items.get(i).getContent().toString() + "\n";
-									result = SUCCESS;
+						if(!Protocol.isValid(readBuffer)) { // malformed datagram
+							malformed.increment();
+							readBuffer.clear();
+							continue;
+						}
+						try {
+							int typeCommand = Protocol.getType(readBuffer);
+							int requestID = Protocol.getRequestID(readBuffer);
+							// acknowledgement of a chunked transfer, relayed by Store
+							if(typeCommand == Protocol.CONTENT_ACK) {
+								/* Message format: transferID, next expected chunk, SACK bitmap, window */
+								ChunkedTransfer.Sender transfer = transfers.get(readBuffer.getLong());
+								if(transfer != null && transfer.onAck(dc, sa, readBuffer)) {
+									transfers.remove(transfer.getTransferID());
+								}
+								readBuffer.clear();
+								stats.recordCommand(typeCommand, received);
+								continue;
+							}
+							if(typeCommand == Protocol.STATS) { // statistics, never cached
+								stats.reply(readBuffer, readBuffer);
+								registerReply(dc, sa, readBuffer);
+								continue;
+							}
+							ByteBuffer cachedReply = replyCache.get(sa, requestID);
+							if(cachedReply != null) { // duplicate request: answer again without executing it again
+								readBuffer.clear();
+								readBuffer.put(cachedReply);
+								readBuffer.flip();
+								registerReply(dc, sa, readBuffer);
+								continue;
+							}
+
+							int result = Protocol.FAIL;
+							// content request
+							if(typeCommand == Protocol.CONTENT_REQUEST) {
+								/* Message format: itemID, transferID */
+								long itemID = readBuffer.getLong();
+								long transferID = readBuffer.getLong();
+								// a slice of the mapped data file, sent without copying it to the heap first
+								ByteBuffer content = contentStore.get().get(itemID);
+								if(content != null) {
+									result = Protocol.SUCCESS;
+								}
+								/* Form message:
+								 * message format: itemID, content (only on SUCCESS).
+								 * Content too large for one datagram is sent in chunks; the reply then carries
+								 * itemID, transferID, length and number of chunks instead of the content.
+								 * The reply carries the requestID so Store can match it to its purchase */
+								if(content != null && content.remaining() > ChunkedTransfer.INLINE_LIMIT) {
+									ChunkedTransfer.Sender transfer = new ChunkedTransfer.Sender(transferID, content);
+									transfers.put(transferID, transfer);
+									timingWheel.schedule(ChunkedTransfer.TRANSFER_TIMEOUT, new TransferExpiry(transfer));
+									Protocol.begin(readBuffer, result, requestID, Protocol.FLAG_CHUNKED);
+									readBuffer.putLong(itemID);
+									readBuffer.putLong(transferID);
+									readBuffer.putLong(transfer.getLength());
+									readBuffer.putInt(transfer.getChunkCount());
+								} else {
+									Protocol.begin(readBuffer, result, requestID);
+									readBuffer.putLong(itemID);
+									if(result == Protocol.SUCCESS) {
+										// same layout as Protocol.putString: length, then UTF-8 bytes
+										readBuffer.putShort((short) content.remaining());
+										readBuffer.put(content);
+									}
 								}
+								Protocol.end(readBuffer);
+								replyCache.put(sa, readBuffer);
+								registerReply(dc, sa, readBuffer);
+								stats.recordCommand(typeCommand, received);
+							} else {
+								readBuffer.clear();
+								System.out.println("Invalid command");
 							}
-							readBuffer.putInt(result);
-							readBuffer.put(Charset.forName("UTF-8").encode(message));
-							readBuffer.flip();
-							List<Object> objList = new ArrayList<Object>();
-							objList.add(sa);
-							objList.add(readBuffer);
-							// set register status to WRITE
-							dc.register(key.selector(), SelectionKey.OP_WRITE, objList);
-						} else {
-							System.out.println("Invalid command");
+						} catch (BufferUnderflowException e) { // malformed datagram: payload shorter than its fields
+							malformed.increment();
+							readBuffer.clear();
 						}
 					}
 					// test whether this key's channel is ready for sending to Client
@@ -193,6 +290,11 @@ public class Content {
 				} else {
 					break;
 				}
+				Runnable task;
+				while ((task = loopTasks.poll()) != null) {
+					task.run();
+				}
+				timingWheel.advance();
 			}
 		} catch (ClosedChannelException e) {
 			e.printStackTrace();
@@ -211,135 +313,229 @@ public class Content {
 
 	/** Register Content server with NameServer **/
 	private void register() {
+		ReliableChannel nameServer = null;
 		try {
-			// construct datagram socket
-			DatagramSocket clientSocket = new DatagramSocket();
-			// set server's ip address
-			InetAddress IPAddress = InetAddress.getByName(NAMESERVER_IP);
+			nameServer = new ReliableChannel("Content", TIMEOUT, true);
+			nameServer.start();
 			// set buffer
-			ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			/* Message format: serverName + "\n" + serverIP + "\n" + serverPort */
-			String command = "Content" + "\n" + InetAddress.getLocalHost().getHostAddress() + "\n" + contentPort + "\n";
-			DatagramPacket sendPacket = createSendPacket(IPAddress, nameServerPort, REGISTER, command);
-			DatagramPacket receivePacket = implementReliability(clientSocket, sendPacket, 
-					"Registration's info is sent to NameServer.");
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			int result = receiveBuffer.getInt();
-			String message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
-			if(result == SUCCESS) {
+			ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+			/* Message format: serverName, serverIP, serverPort */
+			Protocol.begin(sendBuffer, Protocol.REGISTER, 0);
+			Protocol.putString(sendBuffer, "Content");
+			String ip = InetAddress.getLocalHost().getHostAddress();
+			Protocol.putString(sendBuffer, ip);
+			sendBuffer.putInt(contentPort);
+			SocketAddress nameServerAddress = new InetSocketAddress(NAMESERVER_IP, nameServerPort);
+			ByteBuffer receiveBuffer = nameServer.call(nameServerAddress,
+					Protocol.end(sendBuffer), "Registration's info is sent to NameServer.");
+			int result = Protocol.getType(receiveBuffer);
+			/* Message format: message, lease time */
+			String message = Protocol.getString(receiveBuffer);
+			if(result == Protocol.SUCCESS) {
 				System.out.println(message);
-			} else if(result == FAIL) {
+				// renew the registration's lease from now on
+				new Heartbeat(datagramChannel, nameServerAddress, timingWheel, "Content", ip, contentPort,
+						receiveBuffer.getInt()).start();
+			} else if(result == Protocol.FAIL) {
 				System.err.print("Content registration with NameServer failed\n");
 				System.exit(1);
 			}
-			// close up
-			clientSocket.close();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			System.err.print("Content unable to reach NameServer: " + e.getMessage() + "\n");
+			System.exit(1);
+		} finally {
+			// close up
+			if (nameServer != null) {
+				nameServer.close();
+			}
 		}
 	}
 
-	/** Simulate the packet loss 
-	 * @throws IOException */
-	private void simulatePacketLoss(DatagramSocket ds, DatagramPacket dp, String message) throws IOException {
-		double random = Math.random();
-		System.out.println(message);
-		if(random >= 0.5) {
-			ds.send(dp);
+	/** Build the ring of the Content servers sharing the catalog from content.members, until
+	 * NameServer tells which ones have registered **/
+	private void buildShardRing() {
+		String members = System.getProperty("content.members");
+		if(members == null || members.isEmpty()) {
+			return;
+		}
+		try {
+			shardID = InetAddress.getLocalHost().getHostAddress() + ":" + contentPort;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		shardRing = new HashRing<String>();
+		for(String member : members.split(",")) {
+			shardRing.add(member.trim(), member.trim());
+		}
+		if(!shardRing.contains(shardID)) {
+			System.err.print("Content " + shardID + " is not one of content.members\n");
+			System.exit(1);
 		}
 	}
 
-	
-	/** Implements communication reliability. The sender process set a timeout for an ACK
-	 * arrival and retransmit the message if the timeout expires.
-	 * @throws IOException   
-	 * @return return packet received from server */
-	private DatagramPacket implementReliability(DatagramSocket clientSocket, 
-			DatagramPacket sendPacket, String message) throws IOException {
-		long startTime = 0;
-		byte[] receiveData = new byte[BUFFER_SIZE];
-		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-		Thread thread = new Thread( new Runnable() {
-			@Override
-			public void run() {
-				try {
-					// receive reply message from server
-					clientSocket.receive(receivePacket);
-				} catch (IOException e) {
-					e.printStackTrace();
+	/** Follow the Content servers registered with NameServer, every MEMBERS_REFRESH milliseconds
+	 * from a thread of its own, so this server keeps the shard Store routes to it **/
+	private void startMembersRefresh() {
+		if(shardRing == null) {
+			return;
+		}
+		Thread thread = new Thread(() -> {
+			ReliableChannel channel = null;
+			try {
+				channel = new ReliableChannel("Content-members", TIMEOUT, false);
+				channel.start();
+				Resolver resolver = new Resolver(channel, new InetSocketAddress(NAMESERVER_IP, nameServerPort), null);
+				while(true) {
+					Thread.sleep(MEMBERS_REFRESH);
+					refreshMembers(resolver);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				System.err.print("Content unable to follow the Content servers: " + e.getMessage() + "\n");
+			} finally {
+				if (channel != null) {
+					channel.close();
 				}
 			}
-		});
-
-		// send and simulate packet loss
-		simulatePacketLoss(clientSocket, sendPacket, "  >>> " + message);
-		startTime = System.currentTimeMillis();
+		}, "Content-members");
+		thread.setDaemon(true);
 		thread.start();
-		while(thread.isAlive()) {
-			if(System.currentTimeMillis() - startTime > TIMEOUT && thread.isAlive()) {
-				System.out.println("Timeout expired");
-				// send and simulate packet loss
-				simulatePacketLoss(clientSocket, sendPacket, "RETRANSMIT: " + message);
-				startTime = System.currentTimeMillis();
-			}
-		}
-		return receivePacket;
 	}
-	
-	/** Create a send packet */
-	private DatagramPacket createSendPacket(InetAddress iPAddress, int port, int typeCommand, String command) {
-			byte[] sendData = new byte[BUFFER_SIZE];
-			ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			sendBuffer.putInt(typeCommand);
-			sendBuffer.put(Charset.forName("UTF-8").encode(command));
-			sendBuffer.flip();
-			sendData = sendBuffer.array();
-			// send the message to server
-			DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, iPAddress, port);
-			return sendPacket;
-	}
-	
-	/** Read stock-file file into an internal data structure (Arraylist) **/
-	private List<ContentItem> buildItemList() {
-		List<ContentItem> itemList = new ArrayList<ContentItem>();
+
+	/** Rebuild the shard when a Content server has joined or left. Until Store's ring changes
+	 * too, requests for the items that moved may fail. **/
+	private void refreshMembers(Resolver resolver) {
+		Set<String> members = new HashSet<String>();
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(contentFileName));
-			String line = null;
-			while ((line = reader.readLine()) != null) {
-				String[] columns = line.split(" ");
-				long id = Long.parseLong(columns[0]);
-				String content = columns[1];
-				itemList.add(new ContentItem(id, content));
+			resolver.invalidate("Content");
+			for(InetSocketAddress member : resolver.resolveAll("Content")) {
+				members.add(member.getHostString() + ":" + member.getPort());
 			}
-			reader.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (IOException e) {
+			return; // without an answer the current ring is kept
+		}
+		// this server is left out while its registration is not seen, Store does not route to it then
+		if(!members.contains(shardID) || members.equals(shardRing.getNodeIDs())) {
+			return;
+		}
+		HashRing<String> ring = new HashRing<String>();
+		for(String member : members) {
+			ring.add(member, member);
 		}
-		return itemList;
+		shardRing = ring;
+		System.out.println("Content servers changed: " + new TreeSet<String>(members));
+		swapContentStore();
 	}
 
-	public class ContentItem {
-		private long ID;
-		private String content;
+	/** Open the catalog of the content file, keeping only this server's shard. The mapped
+	 * files are built on the first start, whenever the content file changes, and for every
+	 * new set of Content servers. **/
+	private ContentStore openContentStore() throws IOException {
+		ContentStore store = null;
+		HashRing<String> ring = shardRing;
+		if(ring == null) {
+			store = ContentStore.open(contentFileName, null, "");
+		} else {
+			// the files of a shard are named after the servers sharing the catalog
+			String members = String.join(",", new TreeSet<String>(ring.getNodeIDs()));
+			store = ContentStore.open(contentFileName, id -> shardID.equals(ring.get(id)),
+					"." + shardID.replace(':', '_') + "." + Integer.toHexString(members.hashCode()));
+			System.out.println("Content " + shardID + " keeps " + store.size() + " items");
+		}
+		return store;
+	}
 
-		public ContentItem(long ID, String content) {
-			this.ID = ID;
-			this.content = content;
+	/** Rebuild the catalog after the content file changed, publish it and tell the Store servers.
+	 * Runs on the watcher's thread. **/
+	private void reloadContentStore() {
+		if(swapContentStore()) {
+			notifyStores();
 		}
+	}
 
-		public long getID() {
-			return ID;
+	/** Rebuild the catalog and publish it; requests keep using the old catalog until the swap.
+	 * The old catalog is closed TRANSFER_TIMEOUT milliseconds later; its mappings stay valid once
+	 * its file is closed, so a transfer still sending slices of it is not cut short.
+	 * @return false if the catalog could not be rebuilt **/
+	private synchronized boolean swapContentStore() {
+		try {
+			ContentStore reloaded = openContentStore();
+			ContentStore replaced = contentStore.getAndSet(reloaded);
+			System.out.println("Content reloaded: " + reloaded.size() + " items");
+			runInLoop(() -> timingWheel.schedule(ChunkedTransfer.TRANSFER_TIMEOUT,
+					() -> closeContentStore(replaced)));
+			return true;
+		} catch (Exception e) {
+			System.err.print("Content unable to reload " + contentFileName + ": " + e.getMessage() + "\n");
+			return false;
 		}
-		public void setID(long iD) {
-			ID = iD;
+	}
+
+	/** Tell every Store server the content file changed, so they drop the contents they cached
+	 * instead of serving them until they expire. A Store that does not answer keeps its cache. **/
+	private void notifyStores() {
+		ReliableChannel channel = null;
+		try {
+			channel = new ReliableChannel("Content", TIMEOUT, false);
+			channel.start();
+			Resolver resolver = new Resolver(channel, new InetSocketAddress(NAMESERVER_IP, nameServerPort), null);
+			List<CompletableFuture<ByteBuffer>> notices = new ArrayList<CompletableFuture<ByteBuffer>>();
+			for(InetSocketAddress store : resolver.resolveAll("Store")) {
+				ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+				Protocol.begin(sendBuffer, Protocol.CONTENT_RELOADED, 0);
+				notices.add(channel.request(store, Protocol.end(sendBuffer), "Reload notice is sent to Store server."));
+			}
+			for(CompletableFuture<ByteBuffer> notice : notices) {
+				try {
+					notice.join();
+				} catch (CompletionException e) {
+					System.err.print("Store server missed the reload notice: " + e.getCause().getMessage() + "\n");
+				}
+			}
+		} catch (IOException e) {
+			System.err.print("Content unable to reach NameServer: " + e.getMessage() + "\n");
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
 		}
-		public String getContent() {
-			return content;
+	}
+
+	private void closeContentStore(ContentStore store) {
+		try {
+			store.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		public void setContent(String content) {
-			this.content = content;
+	}
+
+	/** Run a task on the event loop's thread **/
+	private void runInLoop(Runnable task) {
+		loopTasks.add(task);
+		selector.wakeup();
+	}
+
+	/** Abandons a chunked transfer nobody has acknowledged for TRANSFER_TIMEOUT milliseconds **/
+	private class TransferExpiry implements Runnable {
+		private final ChunkedTransfer.Sender transfer;
+
+		TransferExpiry(ChunkedTransfer.Sender transfer) {
+			this.transfer = transfer;
 		}
 
+		@Override
+		public void run() {
+			if(transfers.get(transfer.getTransferID()) != transfer) { // completed
+				return;
+			}
+			long idle = TimingWheel.now() - transfer.getLastActivity();
+			if(idle < ChunkedTransfer.TRANSFER_TIMEOUT) {
+				timingWheel.schedule(ChunkedTransfer.TRANSFER_TIMEOUT - idle, this);
+			} else {
+				transfers.remove(transfer.getTransferID());
+			}
+		}
 	}
 }
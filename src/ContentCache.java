@@ -0,0 +1,179 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * Contents already fetched from Content servers, so a hot item costs one
+ * CONTENT_REQUEST rather than one per purchase. Eviction is segmented LRU:
+ * new entries join a probation segment and move to a protected segment (4/5 of
+ * the cache) when hit again, so a burst of one-off items cannot flush the items
+ * bought again and again. Entries expire TTL milliseconds after they were
+ * fetched; Store invalidates them all when Content reloads its content file. Sizes can be overridden with the
+ * system properties contentCache.size and contentCache.ttl.
+ *
+ * Requests in flight are tracked too: a miss for an item whose request is
+ * already outstanding waits for that request instead of sending another one.
+ * Only inline contents are cached; an item sent in chunks is remembered as such.
+ * The cache belongs to one event loop and is not thread-safe.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class ContentCache {
+
+	private final int maxEntries;
+	private final int maxProtected;
+	private final long timeToLive;
+	/* access-ordered: the eldest entry is the least recently used */
+	private final LinkedHashMap<Long, Entry> probation = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<Long, Entry> protectedSegment = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+	private final Map<Long, CompletableFuture<ByteBuffer>> inFlight = new HashMap<Long, CompletableFuture<ByteBuffer>>();
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long coalesced = 0;
+
+	public ContentCache() {
+		this(Integer.getInteger("contentCache.size", 10000), Long.getLong("contentCache.ttl", 60000));
+	}
+
+	/**
+	 * @param maxEntries number of contents kept at most
+	 * @param timeToLive milliseconds a content is kept after it was fetched
+	 */
+	public ContentCache(int maxEntries, long timeToLive) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.maxProtected = this.maxEntries * 4 / 5;
+		this.timeToLive = timeToLive;
+	}
+
+	/** Content of an item, or null on a miss. An item sent in chunks is a miss,
+	 * see isChunked(). **/
+	public String get(long itemID) {
+		Entry entry = lookup(itemID);
+		if (entry == null || entry.content == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.content;
+	}
+
+	/** Whether an item is known to be sent in chunks, so requests for it cannot be shared **/
+	public boolean isChunked(long itemID) {
+		Entry entry = lookup(itemID);
+		return entry != null && entry.content == null;
+	}
+
+	/** Remember the content of an item **/
+	public void put(long itemID, String content) {
+		add(itemID, new Entry(content, TimingWheel.now() + timeToLive));
+	}
+
+	/** Remember that an item is sent in chunks **/
+	public void putChunked(long itemID) {
+		add(itemID, new Entry(null, TimingWheel.now() + timeToLive));
+	}
+
+	/** The request already outstanding for an item, null if there is none **/
+	public CompletableFuture<ByteBuffer> getInFlight(long itemID) {
+		CompletableFuture<ByteBuffer> request = inFlight.get(itemID);
+		if (request != null) {
+			coalesced++;
+		}
+		return request;
+	}
+
+	/** Track a request for an item until it completes, so later misses can wait for it **/
+	public void putInFlight(long itemID, CompletableFuture<ByteBuffer> request) {
+		inFlight.put(itemID, request);
+		request.whenComplete((reply, error) -> inFlight.remove(itemID, request));
+	}
+
+	public void invalidate(long itemID) {
+		probation.remove(itemID);
+		protectedSegment.remove(itemID);
+	}
+
+	/** Forget every content, and the requests in flight, whose replies may predate a reload **/
+	public void invalidateAll() {
+		probation.clear();
+		protectedSegment.clear();
+		inFlight.clear();
+	}
+
+	/** Find an entry, promoting it to the protected segment on its second use **/
+	private Entry lookup(long itemID) {
+		Entry entry = protectedSegment.get(itemID);
+		if (entry == null) {
+			entry = probation.remove(itemID);
+			if (entry == null) {
+				return null;
+			}
+			protectedSegment.put(itemID, entry);
+			if (protectedSegment.size() > maxProtected) {
+				// demote the least recently used protected entry, it gets another chance in probation
+				Iterator<Map.Entry<Long, Entry>> eldest = protectedSegment.entrySet().iterator();
+				Map.Entry<Long, Entry> demoted = eldest.next();
+				eldest.remove();
+				probation.put(demoted.getKey(), demoted.getValue());
+			}
+		}
+		if (entry.expiry < TimingWheel.now()) {
+			invalidate(itemID);
+			return null;
+		}
+		return entry;
+	}
+
+	private void add(long itemID, Entry entry) {
+		if (protectedSegment.containsKey(itemID)) {
+			protectedSegment.put(itemID, entry);
+			return;
+		}
+		probation.put(itemID, entry);
+		while (probation.size() + protectedSegment.size() > maxEntries) {
+			Map<Long, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+			Iterator<Entry> eldest = segment.values().iterator();
+			eldest.next();
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/** Number of misses that waited for a request already in flight **/
+	public long getCoalesced() {
+		return coalesced;
+	}
+
+	public int size() {
+		return probation.size() + protectedSegment.size();
+	}
+
+	private static class Entry {
+		final String content;
+		final long expiry;
+
+		Entry(String content, long expiry) {
+			this.content = content;
+			this.expiry = expiry;
+		}
+	}
+}
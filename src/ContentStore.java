@@ -0,0 +1,221 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.LongPredicate;
+
+
+/**
+ * Read-only content catalog kept on disk and memory-mapped, so startup only maps
+ * two files and the heap does not grow with the catalog. The data file holds the
+ * contents back to back; the index file is an open-addressing hash table of
+ * (itemID, offset, length) slots, so a lookup reads one or two slots. Contents
+ * are returned as slices of the mapped data file, without copying.
+ *
+ * The files are built from the text catalog ("itemID content" lines) the first
+ * time it is opened, and again whenever the text file is newer. Index layout:
+ *
+ *   magic (int) | version (int) | capacity (int) | unused (int) | count (long)
+ *   capacity slots of itemID (long) | offset (long) | length + 1 (int), 0 for an empty slot
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class ContentStore {
+
+	public static final int MAGIC = 0x43494458; // "CIDX"
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 24;
+	public static final int SLOT_SIZE = 20;
+	/* the data file is mapped in segments, a mapping being limited to 2 GB */
+	public static final long SEGMENT_SIZE = 1L << 30;
+
+	private final MappedByteBuffer index;
+	private final int mask;
+	private final long count;
+	private final FileChannel dataChannel;
+	private final MappedByteBuffer[] segments;
+
+	private ContentStore(File indexFile, File dataFile) throws IOException {
+		FileChannel indexChannel = new RandomAccessFile(indexFile, "r").getChannel();
+		try {
+			index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+		} finally {
+			indexChannel.close();
+		}
+		if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+			throw new IOException(indexFile + " is not a content index");
+		}
+		mask = index.getInt(8) - 1;
+		count = index.getLong(16);
+		dataChannel = new RandomAccessFile(dataFile, "r").getChannel();
+		long size = dataChannel.size();
+		segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+		for (int i = 0; i < segments.length; i++) {
+			long start = i * SEGMENT_SIZE;
+			segments[i] = dataChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+		}
+	}
+
+	/** Open the catalog built from a text file, building it first if needed.
+	 * @param keep items to keep, null to keep every item
+	 * @param suffix distinguishes the files of catalogs built with different filters, may be empty **/
+	public static ContentStore open(String textFileName, LongPredicate keep, String suffix) throws IOException {
+		File textFile = new File(textFileName);
+		File indexFile = new File(textFileName + suffix + ".idx");
+		File dataFile = new File(textFileName + suffix + ".dat");
+		if (!indexFile.exists() || !dataFile.exists() || indexFile.lastModified() < textFile.lastModified()) {
+			build(textFile, indexFile, dataFile, keep);
+		}
+		return new ContentStore(indexFile, dataFile);
+	}
+
+	/** Content of an item, a read-only slice of the mapped data file, or null if it is not in the catalog **/
+	public ByteBuffer get(long itemID) {
+		for (int slot = (int) Hashing.mix(itemID) & mask;; slot = (slot + 1) & mask) {
+			int position = HEADER_SIZE + slot * SLOT_SIZE;
+			int length = index.getInt(position + 16) - 1;
+			if (length < 0) {
+				return null;
+			}
+			if (index.getLong(position) == itemID) {
+				return slice(index.getLong(position + 8), length);
+			}
+		}
+	}
+
+	private ByteBuffer slice(long offset, int length) {
+		if (length == 0) {
+			return ByteBuffer.allocate(0);
+		}
+		int segment = (int) (offset / SEGMENT_SIZE);
+		int start = (int) (offset % SEGMENT_SIZE);
+		if (start + (long) length <= segments[segment].limit()) {
+			ByteBuffer content = segments[segment].duplicate();
+			content.position(start);
+			content.limit(start + length);
+			return content.slice();
+		}
+		// the rare content spanning two segments gets a mapping of its own
+		try {
+			return dataChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/** Number of items in the catalog **/
+	public long size() {
+		return count;
+	}
+
+	public void close() throws IOException {
+		dataChannel.close();
+	}
+
+	/** Convert the text catalog, through temporary files renamed into place so processes
+	 * opening the catalog meanwhile never see half-built files **/
+	private static void build(File textFile, File indexFile, File dataFile, LongPredicate keep) throws IOException {
+		// first pass: count the items to size the hash table at most 3/4 full
+		long items = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(textFile));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space > 0 && (keep == null || keep.test(Long.parseLong(line.substring(0, space))))) {
+					items++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		long capacity = Long.highestOneBit(Math.max(2, items * 4 / 3)) << 1;
+		if (HEADER_SIZE + capacity * SLOT_SIZE > Integer.MAX_VALUE) {
+			throw new IOException(textFile + " has too many items for one index file");
+		}
+
+		File directory = indexFile.getAbsoluteFile().getParentFile();
+		File tempIndex = File.createTempFile(indexFile.getName(), ".tmp", directory);
+		File tempData = null;
+		boolean moved = false;
+		try {
+			tempData = File.createTempFile(dataFile.getName(), ".tmp", directory);
+			RandomAccessFile indexRandomAccess = new RandomAccessFile(tempIndex, "rw");
+			FileOutputStream dataStream = new FileOutputStream(tempData);
+			reader = new BufferedReader(new FileReader(textFile));
+			try {
+				// second pass: append the contents and insert their slots into the mapped index
+				MappedByteBuffer index = indexRandomAccess.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						HEADER_SIZE + capacity * SLOT_SIZE);
+				OutputStream data = new BufferedOutputStream(dataStream, 1 << 16);
+				int mask = (int) capacity - 1;
+				long offset = 0;
+				long count = 0;
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					int space = line.indexOf(' ');
+					if (space <= 0) {
+						continue;
+					}
+					long itemID = Long.parseLong(line.substring(0, space));
+					if (keep != null && !keep.test(itemID)) {
+						continue;
+					}
+					String[] columns = line.split(" ");
+					byte[] content = (columns.length > 1 ? columns[1] : "").getBytes(StandardCharsets.UTF_8);
+					int slot = (int) Hashing.mix(itemID) & mask;
+					while (index.getInt(HEADER_SIZE + slot * SLOT_SIZE + 16) != 0
+							&& index.getLong(HEADER_SIZE + slot * SLOT_SIZE) != itemID) {
+						slot = (slot + 1) & mask;
+					}
+					int position = HEADER_SIZE + slot * SLOT_SIZE;
+					if (index.getInt(position + 16) == 0) {
+						count++;
+					}
+					// a repeated itemID keeps its last content
+					index.putLong(position, itemID);
+					index.putLong(position + 8, offset);
+					index.putInt(position + 16, content.length + 1);
+					data.write(content);
+					offset += content.length;
+				}
+				data.flush();
+				dataStream.getFD().sync();
+				index.putInt(0, MAGIC);
+				index.putInt(4, VERSION);
+				index.putInt(8, (int) capacity);
+				index.putLong(16, count);
+				index.force();
+			} finally {
+				reader.close();
+				indexRandomAccess.close();
+				dataStream.close();
+			}
+			Files.move(tempData.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			Files.move(tempIndex.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			// a build that failed leaves no temporary files behind
+			if (!moved) {
+				tempIndex.delete();
+				if (tempData != null) {
+					tempData.delete();
+				}
+			}
+		}
+	}
+}
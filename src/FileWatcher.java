@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Watches a data file on a daemon thread and runs a reload action after it
+ * changes. Editors and copies write a file in several steps, so the action runs
+ * once the file has been quiet for QUIET_PERIOD milliseconds (system property
+ * watcher.quietPeriod) rather than on the first event. The action runs on the
+ * watcher's thread: it should load the file into a new object and publish it
+ * with a single reference swap. An exception thrown by the action is reported
+ * and watching goes on.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class FileWatcher implements Runnable {
+
+	public static final long QUIET_PERIOD = Long.getLong("watcher.quietPeriod", 500);
+
+	private final Path file;
+	private final Runnable onChange;
+
+	public FileWatcher(String fileName, Runnable onChange) {
+		this.file = Paths.get(fileName).toAbsolutePath();
+		this.onChange = onChange;
+	}
+
+	public void start() {
+		Thread thread = new Thread(this, "FileWatcher " + file.getFileName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run() {
+		WatchService watchService = null;
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			// a directory is watched, not a file: the file may be replaced by a rename
+			file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			while (true) {
+				if (!concernsFile(watchService.take())) {
+					continue;
+				}
+				// wait until the file stops changing
+				WatchKey key = null;
+				while ((key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+					concernsFile(key);
+				}
+				try {
+					onChange.run();
+				} catch (RuntimeException e) {
+					// a failed reload leaves the old data in place; the next change is still watched
+					System.err.print("Unable to reload " + file + ": " + e + "\n");
+				}
+			}
+		} catch (IOException e) {
+			System.err.print("Unable to watch " + file + ": " + e.getMessage() + "\n");
+		} catch (InterruptedException e) {
+			// stop watching
+		} finally {
+			if (watchService != null) {
+				try {
+					watchService.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/** Consume the events of a key
+	 * @return true if one of them is about the watched file **/
+	private boolean concernsFile(WatchKey key) {
+		boolean concerned = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+				concerned = true;
+			}
+		}
+		key.reset();
+		return concerned;
+	}
+}
@@ -0,0 +1,84 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+
+/**
+ * Consistent-hash ring assigning item IDs to nodes. Each node is placed on the
+ * ring at VIRTUAL_NODES points hashed from its ID, and owns the keys hashing
+ * between its points and the previous ones, so adding or removing one of N
+ * nodes moves only about 1/N of the keys. Every process building a ring from
+ * the same node IDs assigns keys the same way. The number of points per node
+ * can be overridden with the system property ring.virtualNodes.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class HashRing<T> {
+
+	public static final int VIRTUAL_NODES = Integer.getInteger("ring.virtualNodes", 128);
+
+	private final TreeMap<Long, T> ring = new TreeMap<Long, T>();
+	private final Map<String, T> nodes = new LinkedHashMap<String, T>();
+
+	/** Add a node; nodeID must be the same in every process, for example "ip:port" **/
+	public void add(String nodeID, T node) {
+		remove(nodeID);
+		for (int i = 0; i < VIRTUAL_NODES; i++) {
+			ring.put(hash(nodeID + "#" + i), node);
+		}
+		nodes.put(nodeID, node);
+	}
+
+	/** Remove a node added under nodeID **/
+	public void remove(String nodeID) {
+		T node = nodes.remove(nodeID);
+		if (node == null) {
+			return;
+		}
+		for (int i = 0; i < VIRTUAL_NODES; i++) {
+			ring.remove(hash(nodeID + "#" + i), node);
+		}
+	}
+
+	public boolean contains(String nodeID) {
+		return nodes.containsKey(nodeID);
+	}
+
+	/** A ring with the same nodes, to be changed while this one is still in use **/
+	public HashRing<T> copy() {
+		HashRing<T> copy = new HashRing<T>();
+		copy.ring.putAll(ring);
+		copy.nodes.putAll(nodes);
+		return copy;
+	}
+
+	/** Node owning a key, null if the ring is empty **/
+	public T get(long key) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, T> entry = ring.ceilingEntry(Hashing.mix(key));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	/** IDs of the nodes, in the order they were added **/
+	public Set<String> getNodeIDs() {
+		return nodes.keySet();
+	}
+
+	public boolean isEmpty() {
+		return nodes.isEmpty();
+	}
+
+	/** 64-bit FNV-1a of a node ID, finished by mix() **/
+	private static long hash(String nodeID) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < nodeID.length(); i++) {
+			h ^= nodeID.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return Hashing.mix(h);
+	}
+}
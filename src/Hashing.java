@@ -0,0 +1,20 @@
+/**
+ * Spreading of item IDs and credit card numbers shared by the hash tables
+ * (Catalog, ContentStore, Accounts) and HashRing.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class Hashing {
+
+	private Hashing() {
+	}
+
+	/** SplitMix64 finaliser: every bit of the key affects every bit of the result, so
+	 * sequential keys land far apart **/
+	public static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
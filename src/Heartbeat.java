@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+
+/**
+ * Keeps a server's registration with NameServer alive. Registrations are leases:
+ * NameServer forgets a server it has not heard from for the lease time, so a
+ * crashed server stops being handed out by lookups. A Heartbeat sends a small
+ * unacknowledged HEARTBEAT datagram every third of the lease, so losing one or
+ * two of them does not expire the registration. It runs on the server's own
+ * event loop and timing wheel.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class Heartbeat implements Runnable {
+
+	public final int BUFFER_SIZE = 1024;
+
+	private final DatagramChannel datagramChannel;
+	private final SocketAddress nameServerAddress;
+	private final TimingWheel timingWheel;
+	private final long interval;
+	private final ByteBuffer packet = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * @param datagramChannel the server's channel, heartbeats need no reply
+	 * @param lease lease time in milliseconds given by NameServer's registration reply
+	 */
+	public Heartbeat(DatagramChannel datagramChannel, SocketAddress nameServerAddress, TimingWheel timingWheel,
+			String name, String ip, int port, long lease) {
+		this.datagramChannel = datagramChannel;
+		this.nameServerAddress = nameServerAddress;
+		this.timingWheel = timingWheel;
+		this.interval = Math.max(1, lease / 3);
+		/* Message format: serverName, serverIP, serverPort */
+		Protocol.begin(packet, Protocol.HEARTBEAT, 0);
+		Protocol.putString(packet, name);
+		Protocol.putString(packet, ip);
+		packet.putInt(port);
+		Protocol.end(packet);
+	}
+
+	public void start() {
+		timingWheel.schedule(interval, this);
+	}
+
+	/** Send a heartbeat and schedule the next one **/
+	@Override
+	public void run() {
+		try {
+			datagramChannel.send(packet.duplicate(), nameServerAddress);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		timingWheel.schedule(interval, this);
+	}
+}
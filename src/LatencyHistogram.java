@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Histogram of latencies in microseconds, in the manner of HdrHistogram: every
+ * power of two is split into SUB_BUCKETS buckets of equal width, so a value is
+ * kept with a relative error of 1/SUB_BUCKETS at most, from 1 microsecond to
+ * hours, in a few hundred counters. Recording is one atomic increment and takes
+ * no lock, so any number of threads can record while another one reads.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/* values from 2^MAX_EXPONENT microseconds (about 19 hours) on share the last bucket */
+	private static final int MAX_EXPONENT = 36;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	/** Record the time from start, a System.nanoTime() value, to now **/
+	public void recordSince(long start) {
+		record((System.nanoTime() - start) / 1000);
+	}
+
+	/** Record a latency in microseconds **/
+	public void record(long micros) {
+		counts.incrementAndGet(bucket(Math.max(0, micros)));
+		total.increment();
+		sum.add(micros);
+	}
+
+	public long getCount() {
+		return total.sum();
+	}
+
+	/** Mean latency in microseconds **/
+	public double getMean() {
+		long count = total.sum();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/** Latency in microseconds below which the given fraction of the values fall,
+	 * the upper bound of the bucket holding it **/
+	public long getPercentile(double fraction) {
+		long count = total.sum();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/** Upper bound of the highest bucket holding a value **/
+	public long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) > 0) {
+				return upperBound(i);
+			}
+		}
+		return 0;
+	}
+
+	/** Bucket of a value: values below SUB_BUCKETS have a bucket each, then every power of
+	 * two has SUB_BUCKETS buckets **/
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent >= MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/** Largest value of a bucket **/
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only log of Bank's decisions. Records have a fixed size:
+ *
+ *   sequence (long) | itemID (long) | price in cents (long) | creditCardNumber (long) |
+ *   result (short) | unused (short) | CRC32 of the preceding 36 bytes (int)
+ *
+ * The result is OK, NOT_OK, or VOID_TRANSACTION for a purchase voided after its
+ * approval; the itemID of a void record holds the sequence of the record voided.
+ *
+ * Appended records are buffered; commit() writes them and forces them to disk
+ * with a single fsync, so the records of a whole round of requests share one
+ * fsync (group commit). A reply must only be sent once its record is
+ * committed. On opening, the log is replayed record by record; a record with
+ * a bad checksum or sequence, left by a crash in the middle of a write, ends
+ * the log and is cut off.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class Ledger {
+
+	public static final int RECORD_SIZE = 40;
+	/* records appended between two writes to the file at most */
+	private static final int BUFFERED_RECORDS = 1024;
+
+	/** Receives the records of a log being replayed **/
+	public interface Listener {
+		void onRecord(long sequence, long itemID, long cents, long creditCardNumber, int result);
+	}
+
+	private final FileChannel channel;
+	private final ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * BUFFERED_RECORDS);
+	private final CRC32 crc = new CRC32();
+	private long nextSequence;
+	private boolean dirty = false;
+
+	private Ledger(FileChannel channel, long nextSequence) {
+		this.channel = channel;
+		this.nextSequence = nextSequence;
+	}
+
+	/** Open a log, creating it if needed, and replay its records to listener (may be null) **/
+	public static Ledger open(String fileName, Listener listener) throws IOException {
+		FileChannel channel = new RandomAccessFile(new File(fileName), "rw").getChannel();
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 32768);
+		CRC32 crc = new CRC32();
+		long sequence = 0;
+		long valid = 0;
+		boolean torn = false;
+		channel.position(0);
+		while (!torn && channel.read(buffer) > 0) {
+			buffer.flip();
+			while (buffer.remaining() >= RECORD_SIZE) {
+				int start = buffer.position();
+				crc.reset();
+				crc.update(buffer.array(), start, RECORD_SIZE - 4);
+				if (buffer.getLong(start) != sequence || buffer.getInt(start + RECORD_SIZE - 4) != (int) crc.getValue()) {
+					torn = true;
+					break;
+				}
+				if (listener != null) {
+					listener.onRecord(sequence, buffer.getLong(start + 8), buffer.getLong(start + 16),
+							buffer.getLong(start + 24), buffer.getShort(start + 32));
+				}
+				buffer.position(start + RECORD_SIZE);
+				sequence++;
+				valid += RECORD_SIZE;
+			}
+			buffer.compact();
+		}
+		if (valid < channel.size()) {
+			System.err.print("Ledger " + fileName + ": " + (channel.size() - valid) + " bytes after record "
+					+ sequence + " are damaged and cut off\n");
+			channel.truncate(valid);
+			channel.force(true);
+		}
+		channel.position(valid);
+		return new Ledger(channel, sequence);
+	}
+
+	/** Append a decision; it is durable once commit() returns
+	 * @return the sequence number of its record **/
+	public long append(long itemID, long cents, long creditCardNumber, int result) throws IOException {
+		if (pending.remaining() < RECORD_SIZE) {
+			write();
+		}
+		int start = pending.position();
+		pending.putLong(nextSequence);
+		pending.putLong(itemID);
+		pending.putLong(cents);
+		pending.putLong(creditCardNumber);
+		pending.putShort((short) result);
+		pending.putShort((short) 0);
+		crc.reset();
+		crc.update(pending.array(), start, RECORD_SIZE - 4);
+		pending.putInt((int) crc.getValue());
+		dirty = true;
+		return nextSequence++;
+	}
+
+	/** Write the appended records and force them to disk, with one fsync for all of them **/
+	public void commit() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		write();
+		channel.force(false);
+		dirty = false;
+	}
+
+	private void write() throws IOException {
+		pending.flip();
+		while (pending.hasRemaining()) {
+			channel.write(pending);
+		}
+		pending.clear();
+	}
+
+	/** Number of records, committed or not **/
+	public long size() {
+		return nextSequence;
+	}
+
+	public void close() throws IOException {
+		commit();
+		channel.close();
+	}
+}
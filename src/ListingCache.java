@@ -0,0 +1,76 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Pages of the list of items of one catalog version, encoded once and kept as
+ * read-only buffers. Pages of the default size starting at a page boundary,
+ * which is every page a Client listing the whole catalog asks for, are encoded
+ * the first time they are asked for and shared by every later request; other
+ * pages are encoded on demand. The encoded replies carry request ID 0, to be
+ * replaced by the sender. A new catalog gets a new ListingCache.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class ListingCache {
+
+	private final Catalog catalog;
+	private final int datagramSize;
+	/* items of a default page: as many as fit in a datagram */
+	private final int pageItems;
+	private final AtomicReferenceArray<ByteBuffer> pages;
+
+	public ListingCache(Catalog catalog, int datagramSize) {
+		this.catalog = catalog;
+		this.datagramSize = datagramSize;
+		this.pageItems = Math.max(1, (datagramSize - Protocol.HEADER_SIZE - 2 - 8) / 16);
+		this.pages = new AtomicReferenceArray<ByteBuffer>((catalog.size() + pageItems - 1) / pageItems);
+	}
+
+	/** Version of the catalog the pages list **/
+	public long getVersion() {
+		return catalog.getVersion();
+	}
+
+	public Catalog getCatalog() {
+		return catalog;
+	}
+
+	/** Reply listing the items from position start: pageSize items at most, as many as
+	 * fit in a datagram if pageSize is 0 or too large. The reply is read-only. **/
+	public ByteBuffer page(int start, int pageSize) {
+		int count = pageSize > 0 ? Math.min(pageSize, pageItems) : pageItems;
+		if (count == pageItems && start % pageItems == 0 && start / pageItems < pages.length()) {
+			int index = start / pageItems;
+			ByteBuffer page = pages.get(index);
+			if (page == null) {
+				page = encode(start, count).asReadOnlyBuffer();
+				pages.set(index, page);
+			}
+			return page.duplicate();
+		}
+		return encode(start, count).asReadOnlyBuffer();
+	}
+
+	private ByteBuffer encode(int start, int pageSize) {
+		int count = Math.max(0, Math.min(catalog.size() - start, pageSize));
+		/* reply format: number of items, then itemID and itemPrice of each item, then cursor of the
+		 * next page; flagged FLAG_MORE unless it is the last page */
+		ByteBuffer buffer = ByteBuffer.allocate(datagramSize);
+		Protocol.begin(buffer, Protocol.LIST_ITEMS_REQUEST, 0,
+				start + count < catalog.size() ? Protocol.FLAG_MORE : 0);
+		buffer.putShort((short) count);
+		for (int i = start; i < start + count; i++) {
+			buffer.putLong(catalog.getID(i));
+			Protocol.putCents(buffer, catalog.getCents(i));
+		}
+		buffer.putLong(count > 0 ? catalog.getID(start + count - 1) : 0);
+		Protocol.end(buffer);
+		// keep only the encoded bytes
+		ByteBuffer page = ByteBuffer.allocate(buffer.remaining());
+		page.put(buffer);
+		page.flip();
+		return page;
+	}
+}
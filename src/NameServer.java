@@ -2,14 +2,17 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -19,29 +22,27 @@ import java.util.List;
 public class NameServer {
 
 	public final int BUFFER_SIZE = 1024;
-	public final int REGISTER = 1;
-	public final int LOOKUP = 2;
-	public final int SUCCESS = 3;
-	public final int FAIL = 4;
-	public final int GET_BANK_INFO = 5;
-	public final int GET_CONTENT_INFO = 6;
-	public final int OK = 7;
-	public final int NOT_OK = 8;
-	public final int VALIDATE_TRANSACTION = 9;
-	public final int CONTENT_REQUEST = 10;
-	public final int LIST_ITEMS_REQUEST = 11;
-	public final int BUY_REQUEST = 12;
-
+	/* instances a LOOKUP_ALL reply holds at most, so it fits in one datagram */
+	public final int MAX_INSTANCES = 32;
 
 	// set Server parameters
 	private int port = 21000;
 	private Selector selector = null;
 	private DatagramChannel datagramChannel = null;
 	private DatagramSocket datagramSocket = null;
-	private List<Server> serverList = new ArrayList<Server>();  
+	/* replies already sent, so retransmitted requests are not executed twice */
+	private ReplyCache replyCache = new ReplyCache();
+	/* expiries of registrations' leases */
+	private TimingWheel timingWheel = new TimingWheel(100, 512);
+	/* registered servers, hashed by name; several instances may share a name */
+	private ServiceRegistry registry = new ServiceRegistry(timingWheel);
+	/* latency of each command, and counters, answered to STATS */
+	private Stats stats;
+	private LongAdder malformed;
 
 	public NameServer(String[] args) {
 		validateArguments(args);
+		initStats();
 		serverInit();
 		handleRequests();
 	}
@@ -85,10 +86,29 @@ public class NameServer {
 		}
 	}
 
+	/** Create the statistics, read by the STATS command **/
+	private void initStats() {
+		stats = new Stats("NameServer " + port);
+		malformed = stats.counter("malformed datagrams");
+		stats.gauge("duplicates", replyCache::getHits);
+		stats.startDump();
+	}
+
+	/** Register the channel for writing a reply; the read buffer holding it is re-attached once sent **/
+	private void registerReply(DatagramChannel dc, SocketAddress sa, ByteBuffer readBuffer) throws ClosedChannelException {
+		List<Object> objList = new ArrayList<Object>();
+		objList.add(sa);
+		objList.add(readBuffer);
+		// set register status to WRITE
+		dc.register(selector, SelectionKey.OP_WRITE, objList);
+	}
+
 	/** Handle requests, queries from Clients **/
 	private void handleRequests() {
 		try {
-			while (selector.select() > 0) {
+			while (selector.isOpen()) {
+				// sleep until a datagram arrives or the next lease expires
+				selector.select(timingWheel.nextTimeout());
 				for (SelectionKey key : selector.selectedKeys()) {
 					// test whether this key's channel is ready for reading from Client
 					if (key.isReadable()) {
@@ -96,66 +116,126 @@ public class NameServer {
 						ByteBuffer readBuffer = (ByteBuffer) key.attachment();
 						DatagramChannel dc = (DatagramChannel) key.channel();
 						SocketAddress sa = dc.receive(readBuffer);
+						long received = System.nanoTime();
 						readBuffer.flip();
-						int typeCommand = readBuffer.getInt();
-						String message = Charset.forName("UTF-8").decode(readBuffer).toString();
-						readBuffer.clear();
-
-						// react by Client's message
-						int result = FAIL;
-						// register queries
-						if(typeCommand == REGISTER) {
-							/* Message format: serverName + "\n" + serverIP + "\n" + serverPort */
-							String[] serverInfo = message.split("\n");
-							String name = serverInfo[0];
-							boolean isFound = false;
-							for(int i = 0; i < serverList.size(); i++) {
-								if(serverList.get(i).getServerName().equals(name)) {
-									isFound = true;
-									break;
-								}
+						if(!Protocol.isValid(readBuffer)) { // malformed datagram
+							malformed.increment();
+							readBuffer.clear();
+							continue;
+						}
+						try {
+							int typeCommand = Protocol.getType(readBuffer);
+							int requestID = Protocol.getRequestID(readBuffer);
+							if(typeCommand == Protocol.HEARTBEAT) { // lease renewal, not answered
+								/* Message format: serverName, serverIP, serverPort */
+								registerServer(Protocol.getString(readBuffer), Protocol.getString(readBuffer),
+										readBuffer.getInt());
+								readBuffer.clear();
+								stats.recordCommand(typeCommand, received);
+								continue;
 							}
-							if(isFound == true) { // server's name has already registered
-								result = FAIL;
-								message = "FAIL";
-								System.out.println("Registration failed: " + serverInfo[0] + " server had already registered.");
-							} else { // isFound == false
-								serverList.add(new Server(serverInfo[0], serverInfo[1], 
-										Integer.parseInt(serverInfo[2])));
-								result = SUCCESS;
-								message = "Registration with NameServer succeeded.";
-								System.out.println("Registered: " + serverInfo[0] + " " +
-										serverInfo[1] + " " + serverInfo[2]);
+							if(typeCommand == Protocol.STATS) { // statistics, never cached
+								stats.reply(readBuffer, readBuffer);
+								registerReply(dc, sa, readBuffer);
+								continue;
 							}
-						} else if(typeCommand == LOOKUP ) { // lookup queries
-							boolean isFound = false;
-							String[] serverInfo = message.split("\n");
-							String name = serverInfo[0];
-							result = FAIL;
-							for(int i = 0; i < serverList.size(); i++) {
-								if(serverList.get(i).getServerName().equals(name)) {
-									isFound = true;
-									result = SUCCESS;
-									message = serverList.get(i).getServerName() + "\n" +
-											serverList.get(i).getIPAddress() + "\n" +
-											serverList.get(i).getPort() + "\n";
-									break;
-								}
-							}
-							if(isFound == false) {
-								result = FAIL;
-								message = "Error: Process has not registerd with the Name Server\n";
+							ByteBuffer cachedReply = replyCache.get(sa, requestID);
+							if(cachedReply != null) { // duplicate request: answer again without executing it again
+								readBuffer.clear();
+								readBuffer.put(cachedReply);
+								readBuffer.flip();
+								registerReply(dc, sa, readBuffer);
+								continue;
 							}
 
+							// react by Client's message
+							int result = Protocol.FAIL;
+							// register queries
+							if(typeCommand == Protocol.REGISTER) {
+								/* Message format: serverName, serverIP, serverPort */
+								String name = Protocol.getString(readBuffer);
+								String ip = Protocol.getString(readBuffer);
+								int port = readBuffer.getInt();
+								result = registerServer(name, ip, port);
+								Protocol.begin(readBuffer, result, requestID);
+								putRegisterReply(readBuffer, result);
+							} else if(typeCommand == Protocol.LOOKUP ) { // lookup queries
+								String name = Protocol.getString(readBuffer);
+								ServiceRegistry.Instance server = registry.lookup(name);
+								result = server != null ? Protocol.SUCCESS : Protocol.FAIL;
+								Protocol.begin(readBuffer, result, requestID);
+								putLookupReply(readBuffer, server);
+							} else if(typeCommand == Protocol.LOOKUP_ALL) { // every instance registered under a name
+								String name = Protocol.getString(readBuffer);
+								List<ServiceRegistry.Instance> servers = registry.lookupAll(name);
+								result = servers.isEmpty() ? Protocol.FAIL : Protocol.SUCCESS;
+								Protocol.begin(readBuffer, result, requestID);
+								if(result == Protocol.SUCCESS) {
+									/* Message format: number of instances, then serverName, serverIP, serverPort of each;
+									 * the instances that do not fit in a datagram are left out */
+									int countPosition = readBuffer.position();
+									readBuffer.putShort((short) 0);
+									int count = 0;
+									while(count < Math.min(servers.size(), MAX_INSTANCES)
+											&& lookupReplySize(servers.get(count)) <= readBuffer.remaining()) {
+										putLookupReply(readBuffer, servers.get(count));
+										count++;
+									}
+									readBuffer.putShort(countPosition, (short) count);
+								} else {
+									putLookupReply(readBuffer, null);
+								}
+							} else if(typeCommand == Protocol.BATCH) {
+								// several registrations and lookups in one datagram
+								/* Message format: number of registrations, then serverName, serverIP, serverPort of each,
+								 * number of lookups, then serverName of each */
+								List<ServiceRegistry.Instance> registrations = new ArrayList<ServiceRegistry.Instance>();
+								int count = readBuffer.getShort();
+								for(int i = 0; i < count; i++) {
+									registrations.add(new ServiceRegistry.Instance(Protocol.getString(readBuffer),
+											Protocol.getString(readBuffer), readBuffer.getInt()));
+								}
+								List<String> lookups = new ArrayList<String>();
+								count = readBuffer.getShort();
+								for(int i = 0; i < count; i++) {
+									lookups.add(Protocol.getString(readBuffer));
+								}
+								/* Reply format: result, message and lease time of each registration, then result,
+								 * serverName, serverIP, serverPort (or an error message) of each lookup */
+								Protocol.begin(readBuffer, Protocol.SUCCESS, requestID);
+								try {
+									for(ServiceRegistry.Instance registration : registrations) {
+										int registered = registerServer(registration.getServerName(),
+												registration.getIPAddress(), registration.getPort());
+										readBuffer.putShort((short) registered);
+										putRegisterReply(readBuffer, registered);
+									}
+									for(String name : lookups) {
+										ServiceRegistry.Instance server = registry.lookup(name);
+										readBuffer.putShort((short) (server != null ? Protocol.SUCCESS : Protocol.FAIL));
+										putLookupReply(readBuffer, server);
+									}
+								} catch (BufferOverflowException e) {
+									// the answer does not fit in a datagram; the registrations hold, as a
+									// registration repeated only renews its lease
+									Protocol.begin(readBuffer, Protocol.FAIL, requestID);
+									Protocol.putString(readBuffer, "Error: Batch reply does not fit in a datagram\n");
+								}
+							} else {
+								Protocol.begin(readBuffer, Protocol.FAIL, requestID);
+								Protocol.putString(readBuffer, "Error: Invalid command\n");
+							}
+							Protocol.end(readBuffer);
+							replyCache.put(sa, readBuffer);
+							registerReply(dc, sa, readBuffer);
+							stats.recordCommand(typeCommand, received);
+						} catch (BufferUnderflowException e) { // malformed datagram: payload shorter than its fields
+							malformed.increment();
+							readBuffer.clear();
+						} catch (BufferOverflowException e) { // request whose reply does not fit in a datagram
+							malformed.increment();
+							readBuffer.clear();
 						}
-						readBuffer.putInt(result);
-						readBuffer.put(Charset.forName("UTF-8").encode(message));
-						readBuffer.flip();
-						List<Object> objList = new ArrayList<Object>();
-						objList.add(sa);
-						objList.add(readBuffer);
-						// set register status to WRITE
-						dc.register(key.selector(), SelectionKey.OP_WRITE, objList);
 					}
 					// test whether this key's channel is ready for sending to Client
 					else if (key.isWritable()) {
@@ -174,6 +254,7 @@ public class NameServer {
 				} else {
 					break;
 				}
+				timingWheel.advance();
 			}
 		} catch (ClosedChannelException e) {
 			e.printStackTrace();
@@ -190,6 +271,41 @@ public class NameServer {
 		}
 	}
 
+	/** Register a server under a name, or renew its lease; several servers may share a name **/
+	private int registerServer(String name, String ip, int port) {
+		if(registry.register(name, ip, port)) {
+			System.out.println("Registered: " + name + " " + ip + " " + port);
+		}
+		return Protocol.SUCCESS;
+	}
+
+	/** Message format: message, lease time in milliseconds **/
+	private void putRegisterReply(ByteBuffer buffer, int result) {
+		if(result == Protocol.SUCCESS) {
+			Protocol.putString(buffer, "Registration with NameServer succeeded.");
+		} else {
+			Protocol.putString(buffer, "FAIL");
+		}
+		buffer.putInt((int) registry.getLease());
+	}
+
+	/** Message format: serverName, serverIP, serverPort, or an error message **/
+	private void putLookupReply(ByteBuffer buffer, ServiceRegistry.Instance server) {
+		if(server != null) {
+			Protocol.putString(buffer, server.getServerName());
+			Protocol.putString(buffer, server.getIPAddress());
+			buffer.putInt(server.getPort());
+		} else {
+			Protocol.putString(buffer, "Error: Process has not registerd with the Name Server\n");
+		}
+	}
+
+	/** Size of a lookup reply naming a server **/
+	private static int lookupReplySize(ServiceRegistry.Instance server) {
+		return 2 + server.getServerName().getBytes(StandardCharsets.UTF_8).length
+				+ 2 + server.getIPAddress().getBytes(StandardCharsets.UTF_8).length + 4;
+	}
+
 	/**Check whether the port number in the range from 1024 to 65535**/
 	private boolean validPort(int port) {
 		if (port <= 1024 || port >= 65535){
@@ -218,36 +334,4 @@ public class NameServer {
 			System.exit(1);
 		}
 	}
-
-	/** Class to store information of server **/
-	public class Server {
-		private String serverName;
-		private String iPAddress;
-		private int port;
-
-		public Server(String name, String iPAddress, int port) {
-			this.serverName = name;
-			this.iPAddress = iPAddress;
-			this.port = port;
-		}
-
-		public String getServerName() {
-			return serverName;
-		}
-		public void setServerName(String name) {
-			this.serverName = name;
-		}
-		public String getIPAddress() {
-			return iPAddress;
-		}
-		public void setIPAddress(String iPAddress) {
-			this.iPAddress = iPAddress;
-		}
-		public int getPort() {
-			return port;
-		}
-		public void setPort(int port) {
-			this.port = port;
-		}
-	}
-}
+}
\ No newline at end of file
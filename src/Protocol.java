@@ -0,0 +1,155 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Binary wire format shared by NameServer, Bank, Content, Store and Client.
+ *
+ * Every datagram starts with a fixed header:
+ *   version (1 byte) | flags (1 byte) | type (2 bytes) | requestID (4 bytes) | payload length (2 bytes)
+ * followed by the payload. Item IDs and credit card numbers are longs, prices are
+ * fixed-point cents (long) and strings are a 2-byte length followed by UTF-8 bytes.
+ * Datagrams are sent at their real length, never as the whole buffer.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class Protocol {
+
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 10;
+
+	/** Flag of a reply whose content follows in a ChunkedTransfer instead of inline **/
+	public static final int FLAG_CHUNKED = 1;
+	/** Flag of a page of a listing followed by more pages **/
+	public static final int FLAG_MORE = 2;
+
+	/* message types, the type field of the header */
+	public static final int REGISTER = 1;
+	public static final int LOOKUP = 2;
+	public static final int SUCCESS = 3;
+	public static final int FAIL = 4;
+	public static final int GET_BANK_INFO = 5;
+	public static final int GET_CONTENT_INFO = 6;
+	public static final int OK = 7;
+	public static final int NOT_OK = 8;
+	public static final int VALIDATE_TRANSACTION = 9;
+	public static final int CONTENT_REQUEST = 10;
+	public static final int LIST_ITEMS_REQUEST = 11;
+	public static final int BUY_REQUEST = 12;
+	public static final int BATCH = 13;
+	public static final int LOOKUP_ALL = 14;
+	public static final int HEARTBEAT = 15;
+	public static final int CONTENT_CHUNK = 16;
+	public static final int CONTENT_ACK = 17;
+	public static final int BUY_BY_ID = 18;
+	public static final int VALIDATE_BATCH = 19;
+	/** Type of the reply of a server refusing a request for now; its payload is the
+	 * milliseconds after which to retry (int) **/
+	public static final int BUSY = 20;
+	public static final int STATS = 21;
+	public static final int VOID_TRANSACTION = 22;
+	/** Sent by Content to every Store after reloading its content file, so they drop the
+	 * contents they cached; no payload, answered with SUCCESS **/
+	public static final int CONTENT_RELOADED = 23;
+
+	private static final String[] TYPE_NAMES = { "0", "REGISTER", "LOOKUP", "SUCCESS", "FAIL", "GET_BANK_INFO",
+			"GET_CONTENT_INFO", "OK", "NOT_OK", "VALIDATE_TRANSACTION", "CONTENT_REQUEST",
+			"LIST_ITEMS_REQUEST", "BUY_REQUEST", "BATCH", "LOOKUP_ALL", "HEARTBEAT", "CONTENT_CHUNK",
+			"CONTENT_ACK", "BUY_BY_ID", "VALIDATE_BATCH", "BUSY", "STATS", "VOID_TRANSACTION",
+			"CONTENT_RELOADED" };
+
+	private static final int VERSION_OFFSET = 0;
+	private static final int FLAGS_OFFSET = 1;
+	private static final int TYPE_OFFSET = 2;
+	private static final int REQUEST_ID_OFFSET = 4;
+	private static final int LENGTH_OFFSET = 8;
+
+	private Protocol() {
+	}
+
+	/** Name of a message type, for reports; the number itself if the type is unknown **/
+	public static String typeName(int type) {
+		return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : String.valueOf(type);
+	}
+
+	/** Number of message types, the largest type + 1 **/
+	public static int typeCount() {
+		return TYPE_NAMES.length;
+	}
+
+	/** Clear the buffer and write a header with an empty payload **/
+	public static void begin(ByteBuffer buffer, int type, int requestID) {
+		begin(buffer, type, requestID, 0);
+	}
+
+	/** Clear the buffer and write a header with an empty payload **/
+	public static void begin(ByteBuffer buffer, int type, int requestID, int flags) {
+		buffer.clear();
+		buffer.put((byte) VERSION);
+		buffer.put((byte) flags);
+		buffer.putShort((short) type);
+		buffer.putInt(requestID);
+		buffer.putShort((short) 0);
+	}
+
+	/** Patch the payload length into the header and flip the buffer, ready to be sent **/
+	public static ByteBuffer end(ByteBuffer buffer) {
+		buffer.putShort(LENGTH_OFFSET, (short) (buffer.position() - HEADER_SIZE));
+		buffer.flip();
+		return buffer;
+	}
+
+	/** Check the header of a received (flipped) datagram and position the buffer at its payload.
+	 * @return false if the datagram is truncated or has an unknown version **/
+	public static boolean isValid(ByteBuffer buffer) {
+		if (buffer.remaining() < HEADER_SIZE || buffer.get(VERSION_OFFSET) != VERSION) {
+			return false;
+		}
+		int length = buffer.getShort(LENGTH_OFFSET) & 0xFFFF;
+		if (length != buffer.limit() - HEADER_SIZE) {
+			return false;
+		}
+		buffer.position(HEADER_SIZE);
+		return true;
+	}
+
+	public static int getType(ByteBuffer buffer) {
+		return buffer.getShort(TYPE_OFFSET) & 0xFFFF;
+	}
+
+	public static int getRequestID(ByteBuffer buffer) {
+		return buffer.getInt(REQUEST_ID_OFFSET);
+	}
+
+	public static void setRequestID(ByteBuffer buffer, int requestID) {
+		buffer.putInt(REQUEST_ID_OFFSET, requestID);
+	}
+
+	public static int getFlags(ByteBuffer buffer) {
+		return buffer.get(FLAGS_OFFSET) & 0xFF;
+	}
+
+	/** Write a string as a 2-byte length followed by its UTF-8 bytes **/
+	public static void putString(ByteBuffer buffer, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	public static String getString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Write a price already in cents **/
+	public static void putCents(ByteBuffer buffer, long cents) {
+		buffer.putLong(cents);
+	}
+
+	public static float getPrice(ByteBuffer buffer) {
+		return buffer.getLong() / 100.0f;
+	}
+}
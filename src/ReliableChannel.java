@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Reliable request/reply over UDP. A request is sent, given a retransmission
+ * deadline on a TimingWheel and completed when the reply carrying the same
+ * request ID arrives. Any number of requests can be outstanding on one channel
+ * and nothing spins while waiting: the channel is driven by a selector and a
+ * timing wheel, either the owner's own event loop (register()) or a loop
+ * thread of its own (start()).
+ *
+ * The retransmission timeout adapts to each destination: every peer has an
+ * RttEstimator, retransmissions back off exponentially with jitter, and a
+ * request fails with a TimeoutException after MAX_RETRIES retransmissions (or a
+ * per-request limit) or once DEADLINE milliseconds have passed. Both limits can
+ * be overridden with the system properties reliable.maxRetries and reliable.deadline.
+ *
+ * A server refusing a request for now answers BUSY with the milliseconds after
+ * which to retry. The request then stays outstanding and is sent again after
+ * that delay, doubled for every BUSY reply it got up to 16 times the delay,
+ * with jitter, so refused senders do not all come back at once. A server
+ * answering BUSY is alive: those resends do not count against MAX_RETRIES,
+ * only against the DEADLINE.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class ReliableChannel {
+
+	public final int BUFFER_SIZE = 1024;
+	public static final int MAX_RETRIES = Integer.getInteger("reliable.maxRetries", 10);
+	public static final long DEADLINE = Long.getLong("reliable.deadline", 30000);
+
+	private final String name;
+	private final long initialTimeout;
+	private final boolean verbose;
+	private DatagramChannel datagramChannel;
+	private Selector selector = null;
+	private TimingWheel timingWheel = null;
+	private volatile Thread loopThread = null;
+	private boolean ownLoop = false;
+	private ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final AtomicInteger nextRequestID = new AtomicInteger((int) (Math.random() * Integer.MAX_VALUE));
+
+	/* outstanding requests, keyed by request ID; only touched by the loop thread */
+	private Map<Integer, Request> pendingRequests = new HashMap<Integer, Request>();
+	/* requests submitted by other threads, sent by the loop thread */
+	private Queue<Request> submittedRequests = new ConcurrentLinkedQueue<Request>();
+	/* round-trip time estimates, keyed by destination */
+	private Map<SocketAddress, RttEstimator> peers = new ConcurrentHashMap<SocketAddress, RttEstimator>();
+	/* BUSY replies received */
+	private volatile long busyReplies = 0;
+
+	/**
+	 * @param name used in thread names
+	 * @param initialTimeout retransmission timeout in milliseconds until a peer's round-trip time is known
+	 * @param verbose print a line for every send and retransmission
+	 */
+	public ReliableChannel(String name, long initialTimeout, boolean verbose) throws IOException {
+		this.name = name;
+		this.initialTimeout = initialTimeout;
+		this.verbose = verbose;
+		datagramChannel = DatagramChannel.open();
+		datagramChannel.configureBlocking(false);
+		datagramChannel.bind(null);
+	}
+
+	/** Drive this channel from the caller's event loop. The loop calls handleRead() when the
+	 * key (whose attachment is this channel) is readable, and sendSubmitted() and
+	 * timingWheel.advance() after every select. **/
+	public void register(Selector selector, TimingWheel timingWheel) throws ClosedChannelException {
+		this.selector = selector;
+		this.timingWheel = timingWheel;
+		this.loopThread = Thread.currentThread();
+		datagramChannel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/** Drive this channel from a loop thread of its own **/
+	public void start() throws IOException {
+		Selector ownSelector = Selector.open();
+		register(ownSelector, new TimingWheel(10, 512));
+		ownLoop = true;
+		loopThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runLoop(ownSelector);
+			}
+		}, name + "-reliable");
+		loopThread.setDaemon(true);
+		loopThread.start();
+	}
+
+	private void runLoop(Selector ownSelector) {
+		try {
+			while (ownSelector.isOpen()) {
+				ownSelector.select(timingWheel.nextTimeout());
+				if (!ownSelector.isOpen()) {
+					break;
+				}
+				ownSelector.selectedKeys().clear();
+				handleRead();
+				sendSubmitted();
+				timingWheel.advance();
+			}
+		} catch (IOException e) {
+			// closing the channel stops the loop
+			if (datagramChannel.isOpen()) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Send a request and return a future completed with the reply, positioned at its payload,
+	 * or completed exceptionally with a TimeoutException when the retries run out.
+	 * The request ID in the packet's header is replaced by one unique to this channel.
+	 * Safe to call from any thread. **/
+	public CompletableFuture<ByteBuffer> request(SocketAddress target, ByteBuffer packet, String message) {
+		return request(target, packet, message, MAX_RETRIES);
+	}
+
+	/** Send a request that fails after at most maxRetries retransmissions **/
+	public CompletableFuture<ByteBuffer> request(SocketAddress target, ByteBuffer packet, String message,
+			int maxRetries) {
+		return request(target, packet, message, maxRetries, newRequestID());
+	}
+
+	/** Send a request under a request ID from newRequestID(). A request that is not idempotent
+	 * keeps its ID when it is sent again after a failure, even to another address, so a
+	 * server's reply cache recognises it instead of executing it twice. **/
+	public CompletableFuture<ByteBuffer> request(SocketAddress target, ByteBuffer packet, String message,
+			int maxRetries, int requestID) {
+		Request request = new Request(target, packet, message, maxRetries, requestID);
+		if (Thread.currentThread() == loopThread) {
+			send(request);
+		} else {
+			submittedRequests.add(request);
+			selector.wakeup();
+		}
+		return request.future;
+	}
+
+	/** Blocking form of request(), for callers outside an event loop **/
+	public ByteBuffer call(SocketAddress target, ByteBuffer packet, String message) throws IOException {
+		return call(target, packet, message, MAX_RETRIES);
+	}
+
+	/** Blocking form of request() with at most maxRetries retransmissions **/
+	public ByteBuffer call(SocketAddress target, ByteBuffer packet, String message, int maxRetries)
+			throws IOException {
+		return call(target, packet, message, maxRetries, newRequestID());
+	}
+
+	/** Blocking form of request() under a given request ID **/
+	public ByteBuffer call(SocketAddress target, ByteBuffer packet, String message, int maxRetries,
+			int requestID) throws IOException {
+		try {
+			return request(target, packet, message, maxRetries, requestID).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/** A request ID unique to this channel **/
+	public int newRequestID() {
+		return nextRequestID.getAndIncrement();
+	}
+
+	private void send(Request request) {
+		Protocol.setRequestID(request.packet, request.requestID);
+		pendingRequests.put(request.requestID, request);
+		request.peer = getPeer(request.target);
+		request.firstSentAt = System.nanoTime();
+		simulatePacketLoss(request, "  >>> " + request.message);
+		request.retransmission = timingWheel.schedule(request.peer.backoff(0), request);
+	}
+
+	private RttEstimator getPeer(SocketAddress target) {
+		RttEstimator peer = peers.get(target);
+		if (peer == null) {
+			peer = new RttEstimator(initialTimeout);
+			peers.put(target, peer);
+		}
+		return peer;
+	}
+
+	/** Current retransmission timeout for a destination in milliseconds **/
+	public long getRto(SocketAddress target) {
+		RttEstimator peer = peers.get(target);
+		return peer == null ? initialTimeout : peer.getRto();
+	}
+
+	/** Number of retransmissions sent to a destination **/
+	public long getRetransmits(SocketAddress target) {
+		RttEstimator peer = peers.get(target);
+		return peer == null ? 0 : peer.getRetransmits();
+	}
+
+	/** Number of retransmissions sent to every destination **/
+	public long getRetransmits() {
+		long retransmits = 0;
+		for (RttEstimator peer : peers.values()) {
+			retransmits += peer.getRetransmits();
+		}
+		return retransmits;
+	}
+
+	/** Number of BUSY replies received **/
+	public long getBusyReplies() {
+		return busyReplies;
+	}
+
+	/** Round-trip time estimates of every destination this channel has sent to **/
+	public Map<SocketAddress, RttEstimator> getPeers() {
+		return Collections.unmodifiableMap(peers);
+	}
+
+	/** Receive every datagram waiting on the channel and complete the matching requests **/
+	public void handleRead() throws IOException {
+		SocketAddress sa;
+		while ((sa = datagramChannel.receive(receiveBuffer)) != null) {
+			receiveBuffer.flip();
+			if (!Protocol.isValid(receiveBuffer)) {
+				// malformed datagram
+			} else if (Protocol.getType(receiveBuffer) == Protocol.BUSY) {
+				// the request stays outstanding and is sent again later
+				Request request = pendingRequests.get(Protocol.getRequestID(receiveBuffer));
+				if (request != null) {
+					busyReplies++;
+					request.retryAfter(receiveBuffer.remaining() >= 4 ? receiveBuffer.getInt() : 0);
+				}
+			} else {
+				Request request = pendingRequests.remove(Protocol.getRequestID(receiveBuffer));
+				// a reply to nothing outstanding is a duplicate or a late reply
+				if (request != null) {
+					request.retransmission.cancel();
+					if (request.attempts == 0) {
+						// Karn's rule: only requests sent once give an unambiguous sample
+						request.peer.sample((System.nanoTime() - request.firstSentAt) / 1e6);
+					}
+					ByteBuffer reply = ByteBuffer.allocate(receiveBuffer.limit());
+					receiveBuffer.position(0);
+					reply.put(receiveBuffer);
+					reply.flip();
+					reply.position(Protocol.HEADER_SIZE);
+					request.future.complete(reply);
+				}
+			}
+			receiveBuffer.clear();
+		}
+	}
+
+	/** Send the requests submitted by other threads **/
+	public void sendSubmitted() {
+		Request submitted;
+		while ((submitted = submittedRequests.poll()) != null) {
+			send(submitted);
+		}
+	}
+
+	/** Simulate the packet loss **/
+	private void simulatePacketLoss(Request request, String message) {
+		double random = Math.random();
+		if (verbose) {
+			System.out.println(message);
+		}
+		if (random >= 0.5) {
+			try {
+				datagramChannel.send(request.packet.duplicate(), request.target);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Close the channel; a loop thread of its own stops with it **/
+	public void close() {
+		try {
+			if (ownLoop) {
+				selector.close();
+			}
+			datagramChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** An outstanding request; runs as its own retransmission task **/
+	private class Request implements Runnable {
+		final int requestID;
+		final SocketAddress target;
+		final ByteBuffer packet;
+		final String message;
+		final int maxRetries;
+		RttEstimator peer;
+		long firstSentAt;
+		int attempts = 0;
+		/* BUSY replies received */
+		int busy = 0;
+		TimingWheel.Timeout retransmission;
+		final CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+
+		Request(SocketAddress target, ByteBuffer packet, String message, int maxRetries, int requestID) {
+			this.requestID = requestID;
+			this.target = target;
+			this.packet = packet;
+			this.message = message;
+			this.maxRetries = maxRetries;
+		}
+
+		/** The server is busy: send again after delay milliseconds, doubled for every BUSY reply
+		 * before up to 16 times the delay, with jitter of up to half of it **/
+		void retryAfter(long delay) {
+			retransmission.cancel();
+			busy++;
+			long timeout = Math.min(RttEstimator.MAX_RTO, Math.max(1, delay) << Math.min(busy - 1, 4));
+			timeout = timeout + (long) (Math.random() * (timeout / 2 + 1));
+			long elapsed = (System.nanoTime() - firstSentAt) / 1000000;
+			retransmission = timingWheel.schedule(Math.max(0, Math.min(timeout, DEADLINE - elapsed)), this);
+		}
+
+		/** Timeout expired: retransmit and wait again, or give up **/
+		@Override
+		public void run() {
+			if (verbose) {
+				System.out.println("Timeout expired");
+			}
+			long elapsed = (System.nanoTime() - firstSentAt) / 1000000;
+			if (attempts - busy >= maxRetries || elapsed >= DEADLINE) {
+				pendingRequests.remove(requestID);
+				future.completeExceptionally(new TimeoutException(message + " (no reply after "
+						+ (attempts + 1) + " attempts, " + elapsed + " ms)"));
+				return;
+			}
+			attempts++;
+			peer.countRetransmit();
+			simulatePacketLoss(this, "RETRANSMIT: " + message);
+			retransmission = timingWheel.schedule(Math.min(peer.backoff(attempts - busy), DEADLINE - elapsed), this);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Replies already sent, keyed by (client address, request ID), so a retransmitted
+ * request is answered again without being executed again. Entries are kept in
+ * arrival order and evicted once older than the time-to-live or when the cache
+ * is full. The time-to-live must outlast the senders' retransmission deadline.
+ * Sizes can be overridden with the system properties replyCache.size and replyCache.ttl.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class ReplyCache {
+
+	/** Returned by get() for a request that is still being executed **/
+	public static final ByteBuffer IN_PROGRESS = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private final int maxEntries;
+	private final long timeToLive;
+	private final Map<Key, Entry> entries = new LinkedHashMap<Key, Entry>();
+	private long hits = 0;
+
+	public ReplyCache() {
+		this(Integer.getInteger("replyCache.size", 100000), Long.getLong("replyCache.ttl", 60000));
+	}
+
+	/**
+	 * @param maxEntries number of replies kept at most
+	 * @param timeToLive milliseconds a reply is kept
+	 */
+	public ReplyCache(int maxEntries, long timeToLive) {
+		this.maxEntries = maxEntries;
+		this.timeToLive = timeToLive;
+	}
+
+	/** The reply already sent for a request, IN_PROGRESS if it is still being executed,
+	 * or null if the request is new. The reply is a read-only view positioned at its header. **/
+	public synchronized ByteBuffer get(SocketAddress client, int requestID) {
+		Entry entry = entries.get(new Key(client, requestID));
+		if (entry == null || entry.time + timeToLive < TimingWheel.now()) {
+			return null;
+		}
+		hits++;
+		return entry.reply == null ? IN_PROGRESS : entry.reply.duplicate();
+	}
+
+	/** Mark a request as being executed, so duplicates arriving meanwhile are ignored **/
+	public synchronized void begin(SocketAddress client, int requestID) {
+		add(new Key(client, requestID), null);
+	}
+
+	/** Remember the reply to a request; the request ID is read from the reply's header **/
+	public synchronized void put(SocketAddress client, ByteBuffer reply) {
+		ByteBuffer source = reply.duplicate();
+		source.rewind();
+		ByteBuffer copy = ByteBuffer.allocate(source.limit());
+		copy.put(source);
+		copy.flip();
+		add(new Key(client, Protocol.getRequestID(copy)), copy.asReadOnlyBuffer());
+	}
+
+	/** Forget a request, for example one whose execution failed and may be retried **/
+	public synchronized void remove(SocketAddress client, int requestID) {
+		entries.remove(new Key(client, requestID));
+	}
+
+	private void add(Key key, ByteBuffer reply) {
+		long now = TimingWheel.now();
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			entry.reply = reply;
+		} else {
+			entries.put(key, new Entry(now, reply));
+		}
+		// evict the oldest entries
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry oldest = iterator.next();
+			if (entries.size() <= maxEntries && oldest.time + timeToLive >= now) {
+				break;
+			}
+			iterator.remove();
+		}
+	}
+
+	/** Number of duplicate requests answered or ignored thanks to the cache **/
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class Key {
+		final SocketAddress client;
+		final int requestID;
+
+		Key(SocketAddress client, int requestID) {
+			this.client = client;
+			this.requestID = requestID;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return requestID == other.requestID && client.equals(other.client);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * client.hashCode() + requestID;
+		}
+	}
+
+	private static class Entry {
+		final long time;
+		ByteBuffer reply;
+
+		Entry(long time, ByteBuffer reply) {
+			this.time = time;
+			this.reply = reply;
+		}
+	}
+}
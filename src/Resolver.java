@@ -0,0 +1,238 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Resolves server names with NameServer and caches the answers for TTL
+ * milliseconds (system property resolver.ttl), so most requests need no
+ * NameServer round trip. resolve() asks for one instance of a server, resolveAll()
+ * for every instance registered under its name. The cache can be persisted to a
+ * small text file, one "name expiry all|one ip port [ip port ...]" line per entry,
+ * which lets short-lived processes such as Client share it across runs.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class Resolver {
+
+	public final int BUFFER_SIZE = 1024;
+
+	public static final long TTL = Long.getLong("resolver.ttl", 60000);
+
+	private final ReliableChannel channel;
+	private final SocketAddress nameServerAddress;
+	private final File cacheFile;
+	private final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+	/* lease time given by the last registration */
+	private long lease = 0;
+
+	/**
+	 * @param channel channel the NameServer requests are sent on
+	 * @param nameServerAddress NameServer's address
+	 * @param cacheFileName file the cache is persisted to, null or empty to keep it in memory only
+	 */
+	public Resolver(ReliableChannel channel, SocketAddress nameServerAddress, String cacheFileName) {
+		this.channel = channel;
+		this.nameServerAddress = nameServerAddress;
+		this.cacheFile = cacheFileName == null || cacheFileName.isEmpty() ? null : new File(cacheFileName);
+		load();
+	}
+
+	/** Address of a server, from the cache if possible.
+	 * @return null if the server has not registered **/
+	public InetSocketAddress resolve(String name) throws IOException {
+		Entry entry = cache.get(name);
+		if (entry != null && entry.expiry > System.currentTimeMillis()) {
+			return entry.addresses.get(0);
+		}
+		/* Message format: serverName */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.LOOKUP, 0);
+		Protocol.putString(sendBuffer, name);
+		ByteBuffer receiveBuffer = channel.call(nameServerAddress, Protocol.end(sendBuffer),
+				name + " server's info request is sent to NameServer.");
+		if (Protocol.getType(receiveBuffer) != Protocol.SUCCESS) {
+			return null;
+		}
+		InetSocketAddress address = readLookupReply(receiveBuffer);
+		put(name, Collections.singletonList(address), false);
+		save();
+		return address;
+	}
+
+	/** Addresses of every instance registered under a name, from the cache if possible.
+	 * @return an empty list if no instance has registered **/
+	public List<InetSocketAddress> resolveAll(String name) throws IOException {
+		Entry entry = cache.get(name);
+		if (entry != null && entry.isAll && entry.expiry > System.currentTimeMillis()) {
+			return entry.addresses;
+		}
+		/* Message format: serverName */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.LOOKUP_ALL, 0);
+		Protocol.putString(sendBuffer, name);
+		ByteBuffer receiveBuffer = channel.call(nameServerAddress, Protocol.end(sendBuffer),
+				"Info request for every " + name + " server is sent to NameServer.");
+		if (Protocol.getType(receiveBuffer) != Protocol.SUCCESS) {
+			return Collections.emptyList();
+		}
+		/* Message format: number of instances, then serverName, serverIP, serverPort of each */
+		int count = receiveBuffer.getShort();
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(count);
+		for (int i = 0; i < count; i++) {
+			addresses.add(readLookupReply(receiveBuffer));
+		}
+		put(name, addresses, true);
+		save();
+		return addresses;
+	}
+
+	/** Whether a server's address is in the cache and has not expired **/
+	public boolean isCached(String name) {
+		Entry entry = cache.get(name);
+		return entry != null && entry.expiry > System.currentTimeMillis();
+	}
+
+	/** Forget a cached address, for example one that stopped answering **/
+	public void invalidate(String name) {
+		if (cache.remove(name) != null) {
+			save();
+		}
+	}
+
+	/** Register a server and resolve several names in a single NameServer round trip.
+	 * The resolved names are cached.
+	 * @return result of the registration, SUCCESS or FAIL **/
+	public int registerAndResolve(String name, String ip, int port, List<String> names) throws IOException {
+		/* Message format: number of registrations, then serverName, serverIP, serverPort of each,
+		 * number of lookups, then serverName of each */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.BATCH, 0);
+		sendBuffer.putShort((short) 1);
+		Protocol.putString(sendBuffer, name);
+		Protocol.putString(sendBuffer, ip);
+		sendBuffer.putInt(port);
+		sendBuffer.putShort((short) names.size());
+		for (String lookup : names) {
+			Protocol.putString(sendBuffer, lookup);
+		}
+		ByteBuffer receiveBuffer = channel.call(nameServerAddress, Protocol.end(sendBuffer),
+				"Registration's info and " + names + " info requests are sent to NameServer.");
+		if (Protocol.getType(receiveBuffer) != Protocol.SUCCESS) {
+			throw new IOException(Protocol.getString(receiveBuffer).trim());
+		}
+		/* Reply format: result, message and lease time of each registration, then result,
+		 * serverName, serverIP, serverPort (or an error message) of each lookup */
+		int result = receiveBuffer.getShort();
+		System.out.println(Protocol.getString(receiveBuffer));
+		lease = receiveBuffer.getInt();
+		for (String lookup : names) {
+			if (receiveBuffer.getShort() == Protocol.SUCCESS) {
+				put(lookup, Collections.singletonList(readLookupReply(receiveBuffer)), false);
+			} else {
+				Protocol.getString(receiveBuffer);
+			}
+		}
+		save();
+		return result;
+	}
+
+	/** Lease time in milliseconds given by NameServer to the last registration,
+	 * to be renewed with a Heartbeat **/
+	public long getLease() {
+		return lease;
+	}
+
+	/** Message format: serverName, serverIP, serverPort **/
+	private InetSocketAddress readLookupReply(ByteBuffer buffer) {
+		Protocol.getString(buffer);
+		String ip = Protocol.getString(buffer);
+		int port = buffer.getInt();
+		return new InetSocketAddress(ip, port);
+	}
+
+	private void put(String name, List<InetSocketAddress> addresses, boolean isAll) {
+		cache.put(name, new Entry(Collections.unmodifiableList(addresses), isAll, System.currentTimeMillis() + TTL));
+	}
+
+	/** Read the persisted cache, skipping expired entries **/
+	private void load() {
+		if (cacheFile == null || !cacheFile.exists()) {
+			return;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(cacheFile));
+			String line = null;
+			long now = System.currentTimeMillis();
+			while ((line = reader.readLine()) != null) {
+				String[] columns = line.split(" ");
+				long expiry = Long.parseLong(columns[1]);
+				if (expiry > now) {
+					List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+					for (int i = 3; i + 1 < columns.length; i += 2) {
+						addresses.add(new InetSocketAddress(columns[i], Integer.parseInt(columns[i + 1])));
+					}
+					if (!addresses.isEmpty()) {
+						cache.put(columns[0], new Entry(Collections.unmodifiableList(addresses),
+								columns[2].equals("all"), expiry));
+					}
+				}
+			}
+			reader.close();
+		} catch (Exception e) {
+			// a damaged cache is only a missed optimisation
+			cache.clear();
+		}
+	}
+
+	/** Persist the cache through a temporary file, so readers never see half of it **/
+	private void save() {
+		if (cacheFile == null) {
+			return;
+		}
+		try {
+			File temp = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+			PrintWriter writer = new PrintWriter(new FileWriter(temp));
+			for (Map.Entry<String, Entry> entry : cache.entrySet()) {
+				StringBuilder line = new StringBuilder(entry.getKey()).append(' ').append(entry.getValue().expiry)
+						.append(entry.getValue().isAll ? " all" : " one");
+				for (InetSocketAddress address : entry.getValue().addresses) {
+					line.append(' ').append(address.getHostString()).append(' ').append(address.getPort());
+				}
+				writer.println(line);
+			}
+			writer.close();
+			Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static class Entry {
+		final List<InetSocketAddress> addresses;
+		/* every instance, from LOOKUP_ALL, rather than one chosen by NameServer */
+		final boolean isAll;
+		final long expiry;
+
+		Entry(List<InetSocketAddress> addresses, boolean isAll, long expiry) {
+			this.addresses = addresses;
+			this.isAll = isAll;
+			this.expiry = expiry;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/**
+ * Round-trip time estimate and retransmission timeout for one peer,
+ * after Jacobson/Karels: RTO = SRTT + 4 * RTTVAR, clamped to [MIN_RTO, MAX_RTO].
+ * Updated by one event loop; the volatile fields can be read from any thread.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class RttEstimator {
+
+	public static final long MIN_RTO = 20;
+	public static final long MAX_RTO = 8000;
+
+	private volatile double srtt = -1;
+	private volatile double rttvar = 0;
+	private volatile long rto;
+	private volatile long retransmits = 0;
+	private volatile long samples = 0;
+
+	/**
+	 * @param initialRto retransmission timeout in milliseconds until the first sample
+	 */
+	public RttEstimator(long initialRto) {
+		this.rto = initialRto;
+	}
+
+	/** Add a round-trip time measured on a request that was not retransmitted (Karn's rule) **/
+	public void sample(double rttMillis) {
+		if (srtt < 0) {
+			srtt = rttMillis;
+			rttvar = rttMillis / 2;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMillis);
+			srtt = 0.875 * srtt + 0.125 * rttMillis;
+		}
+		rto = Math.min(MAX_RTO, Math.max(MIN_RTO, (long) Math.ceil(srtt + 4 * rttvar)));
+		samples++;
+	}
+
+	/** Timeout before the given retransmission (0 for the first send):
+	 * the RTO doubled per attempt, capped at MAX_RTO, with random jitter of up to half of it **/
+	public long backoff(int attempt) {
+		long timeout = rto;
+		for (int i = 0; i < attempt && timeout < MAX_RTO; i++) {
+			timeout = timeout * 2;
+		}
+		timeout = Math.min(MAX_RTO, timeout);
+		if (attempt == 0) {
+			return timeout;
+		}
+		return timeout / 2 + (long) (Math.random() * (timeout / 2 + 1));
+	}
+
+	public void countRetransmit() {
+		retransmits++;
+	}
+
+	public long getRto() {
+		return rto;
+	}
+
+	/** Smoothed round-trip time in milliseconds, -1 before the first sample **/
+	public double getSrtt() {
+		return srtt;
+	}
+
+	public double getRttvar() {
+		return rttvar;
+	}
+
+	public long getRetransmits() {
+		return retransmits;
+	}
+
+	public long getSamples() {
+		return samples;
+	}
+}
@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Registered servers, hashed by service name to the instances registered under
+ * it, so registrations and lookups cost the same however many services exist.
+ * Several instances may share a name; a LOOKUP is answered with one of them,
+ * chosen by a Policy: round-robin (the default), random or least-recently-returned.
+ * The policy can be chosen with the system property nameServer.policy.
+ *
+ * A registration is a lease of nameServer.lease milliseconds (10 s by default),
+ * renewed by registering again or by a heartbeat. Expiries are kept on the
+ * NameServer's timing wheel; a renewal only moves the instance's expiry time and
+ * the pending expiry reschedules itself when it fires, so heartbeats cost O(1)
+ * and lookups never return an instance whose lease has run out.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class ServiceRegistry {
+
+	private final Map<String, List<Instance>> services = new HashMap<String, List<Instance>>();
+	private final Policy policy;
+	private final TimingWheel timingWheel;
+	private final long lease;
+	private int size = 0;
+	/* number of lookups answered, orders instances for LeastRecentPolicy */
+	private long lookups = 0;
+
+	public ServiceRegistry(TimingWheel timingWheel) {
+		this(policy(System.getProperty("nameServer.policy", "round-robin")), timingWheel,
+				Long.getLong("nameServer.lease", 10000));
+	}
+
+	/**
+	 * @param timingWheel wheel of the NameServer's event loop, expiries run on it
+	 * @param lease milliseconds a registration lasts unless it is renewed
+	 */
+	public ServiceRegistry(Policy policy, TimingWheel timingWheel, long lease) {
+		this.policy = policy;
+		this.timingWheel = timingWheel;
+		this.lease = lease;
+	}
+
+	/** Policy by name: round-robin, random or least-recent **/
+	public static Policy policy(String name) {
+		if (name.equals("random")) {
+			return new RandomPolicy();
+		} else if (name.equals("least-recent")) {
+			return new LeastRecentPolicy();
+		} else if (name.equals("round-robin")) {
+			return new RoundRobinPolicy();
+		}
+		throw new IllegalArgumentException("Unknown selection policy " + name);
+	}
+
+	/** Add an instance of a service, or renew its lease if the endpoint has already
+	 * registered under that name, so a restarted server can register again.
+	 * @return true if the instance is new, false if its lease was renewed **/
+	public boolean register(String name, String ip, int port) {
+		long expiry = TimingWheel.now() + lease;
+		List<Instance> instances = services.get(name);
+		if (instances == null) {
+			instances = new ArrayList<Instance>();
+			services.put(name, instances);
+		}
+		for (Instance instance : instances) {
+			if (instance.port == port && instance.ip.equals(ip)) {
+				instance.expiry = expiry;
+				return false;
+			}
+		}
+		Instance instance = new Instance(name, ip, port);
+		instance.expiry = expiry;
+		instances.add(instance);
+		size++;
+		timingWheel.schedule(lease, new Expiry(instance));
+		return true;
+	}
+
+	/** Remove an instance of a service
+	 * @return false if it was not registered **/
+	public boolean remove(Instance instance) {
+		List<Instance> instances = services.get(instance.name);
+		if (instances == null || !instances.remove(instance)) {
+			return false;
+		}
+		if (instances.isEmpty()) {
+			services.remove(instance.name);
+		}
+		size--;
+		return true;
+	}
+
+	/** One instance of a service chosen by the policy, null if none has registered **/
+	public Instance lookup(String name) {
+		List<Instance> instances = services.get(name);
+		if (instances == null) {
+			return null;
+		}
+		Instance instance = policy.choose(name, instances);
+		instance.lastReturned = ++lookups;
+		return instance;
+	}
+
+	/** Every instance of a service, in registration order; empty if none has registered **/
+	public List<Instance> lookupAll(String name) {
+		List<Instance> instances = services.get(name);
+		if (instances == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(instances);
+	}
+
+	/** Milliseconds a registration lasts unless it is renewed **/
+	public long getLease() {
+		return lease;
+	}
+
+	/** Number of registered instances of all services **/
+	public int size() {
+		return size;
+	}
+
+	/** A registered server **/
+	public static class Instance {
+		private final String name;
+		private final String ip;
+		private final int port;
+		/* lookup that last returned this instance, 0 if none has */
+		private long lastReturned = 0;
+		/* end of the lease, on TimingWheel's clock */
+		private long expiry;
+
+		Instance(String name, String ip, int port) {
+			this.name = name;
+			this.ip = ip;
+			this.port = port;
+		}
+
+		public String getServerName() {
+			return name;
+		}
+		public String getIPAddress() {
+			return ip;
+		}
+		public int getPort() {
+			return port;
+		}
+	}
+
+	/** Pending expiry of an instance's lease **/
+	private class Expiry implements Runnable {
+		private final Instance instance;
+
+		Expiry(Instance instance) {
+			this.instance = instance;
+		}
+
+		/** Remove the instance, or wait again if its lease has been renewed meanwhile **/
+		@Override
+		public void run() {
+			long remaining = instance.expiry - TimingWheel.now();
+			if (remaining > 0) {
+				timingWheel.schedule(remaining, this);
+			} else if (remove(instance)) {
+				System.out.println("Expired: " + instance.name + " " + instance.ip + " " + instance.port);
+			}
+		}
+	}
+
+	/** Chooses which instance of a service a lookup returns **/
+	public interface Policy {
+		/** @param instances the service's instances, never empty **/
+		Instance choose(String name, List<Instance> instances);
+	}
+
+	/** Each instance in turn **/
+	public static class RoundRobinPolicy implements Policy {
+		private final Map<String, Integer> cursors = new HashMap<String, Integer>();
+
+		@Override
+		public Instance choose(String name, List<Instance> instances) {
+			Integer cursor = cursors.get(name);
+			int next = cursor == null ? 0 : (cursor + 1) % instances.size();
+			cursors.put(name, next);
+			return instances.get(next);
+		}
+	}
+
+	/** Any instance, uniformly **/
+	public static class RandomPolicy implements Policy {
+		private final Random random = new Random();
+
+		@Override
+		public Instance choose(String name, List<Instance> instances) {
+			return instances.get(random.nextInt(instances.size()));
+		}
+	}
+
+	/** The instance whose address was handed out longest ago **/
+	public static class LeastRecentPolicy implements Policy {
+		@Override
+		public Instance choose(String name, List<Instance> instances) {
+			Instance chosen = instances.get(0);
+			for (Instance instance : instances) {
+				if (instance.lastReturned < chosen.lastReturned) {
+					chosen = instance;
+				}
+			}
+			return chosen;
+		}
+	}
+}
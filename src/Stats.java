@@ -0,0 +1,229 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Measurements of one server: a LatencyHistogram per command type and named
+ * ones for anything else timed, counters, and gauges read from the objects
+ * owning the numbers (caches, channels, admission control) when a report is
+ * made. Recording takes no lock. Gauges registered under the same name are
+ * added up, so each event loop of a server registers its own.
+ *
+ * The report, a line per measurement, is answered to the STATS command, a
+ * page at a time: the request carries the first line wanted (short, optional),
+ * the reply the lines that fit in a datagram followed by the next line to ask
+ * for (short), and FLAG_MORE unless it is the last page. With the system
+ * property stats.file set, a server also appends its report to that file
+ * (suffixed with the server's name) every stats.interval milliseconds.
+ *
+ * Run as a program, it prints the report of a server: java Stats port [ip]
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class Stats {
+
+	public static final int BUFFER_SIZE = 1024;
+	public static final long INTERVAL = Long.getLong("stats.interval", 10000);
+	public static final String FILE = System.getProperty("stats.file");
+
+	private final String name;
+	private final long started = System.currentTimeMillis();
+	private final AtomicReferenceArray<LatencyHistogram> commands = new AtomicReferenceArray<LatencyHistogram>(
+			Protocol.typeCount());
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+	private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+	private final Map<String, List<LongSupplier>> gauges = new ConcurrentSkipListMap<String, List<LongSupplier>>();
+
+	public Stats(String name) {
+		this.name = name;
+	}
+
+	/** Record the time a command took, from start (a System.nanoTime() value) to now **/
+	public void recordCommand(int type, long start) {
+		if (type < 0 || type >= Protocol.typeCount()) {
+			return;
+		}
+		LatencyHistogram histogram = commands.get(type);
+		if (histogram == null) {
+			commands.compareAndSet(type, null, new LatencyHistogram());
+			histogram = commands.get(type);
+		}
+		histogram.recordSince(start);
+	}
+
+	/** The histogram of a name, created the first time; keep it rather than looking it up each time **/
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new LatencyHistogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/** The counter of a name, created the first time; keep it rather than looking it up each time **/
+	public LongAdder counter(String name) {
+		LongAdder counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new LongAdder());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+
+	/** Add a number read when a report is made; numbers registered under one name are added up **/
+	public void gauge(String name, LongSupplier value) {
+		List<LongSupplier> values = gauges.get(name);
+		if (values == null) {
+			gauges.putIfAbsent(name, new CopyOnWriteArrayList<LongSupplier>());
+			values = gauges.get(name);
+		}
+		values.add(value);
+	}
+
+	/** The report, a line per measurement; latencies are in milliseconds **/
+	public List<String> report() {
+		List<String> lines = new ArrayList<String>();
+		lines.add(name + " up " + (System.currentTimeMillis() - started) / 1000 + " s");
+		for (int i = 0; i < Protocol.typeCount(); i++) {
+			LatencyHistogram histogram = commands.get(i);
+			if (histogram != null) {
+				lines.add(format(Protocol.typeName(i), histogram));
+			}
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			lines.add(format(entry.getKey(), entry.getValue()));
+		}
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			lines.add(entry.getKey() + " " + entry.getValue().sum());
+		}
+		for (Map.Entry<String, List<LongSupplier>> entry : gauges.entrySet()) {
+			long value = 0;
+			for (LongSupplier supplier : entry.getValue()) {
+				value += supplier.getAsLong();
+			}
+			lines.add(entry.getKey() + " " + value);
+		}
+		return lines;
+	}
+
+	private static String format(String name, LatencyHistogram histogram) {
+		return String.format("%s count %d mean %.3f p50 %.3f p90 %.3f p99 %.3f max %.3f", name,
+				histogram.getCount(), histogram.getMean() / 1000, histogram.getPercentile(0.5) / 1000.0,
+				histogram.getPercentile(0.9) / 1000.0, histogram.getPercentile(0.99) / 1000.0,
+				histogram.getMax() / 1000.0);
+	}
+
+	/** Write the reply to a STATS request, positioned at its payload, into buffer (which may
+	 * be the request's): the lines of the report from the one the request asks for **/
+	public ByteBuffer reply(ByteBuffer request, ByteBuffer buffer) {
+		int requestID = Protocol.getRequestID(request);
+		int first = request.remaining() >= 2 ? request.getShort() & 0xFFFF : 0;
+		List<String> lines = report();
+		/* reply format: lines of the report (string), then the next line to ask for */
+		StringBuilder page = new StringBuilder();
+		int next = first;
+		int room = Math.min(buffer.capacity(), BUFFER_SIZE) - Protocol.HEADER_SIZE - 4;
+		while (next < lines.size()) {
+			byte[] line = (lines.get(next) + "\n").getBytes(StandardCharsets.UTF_8);
+			if (line.length > room && page.length() > 0) {
+				break;
+			}
+			page.append(lines.get(next)).append('\n');
+			room -= line.length;
+			next++;
+		}
+		Protocol.begin(buffer, Protocol.STATS, requestID, next < lines.size() ? Protocol.FLAG_MORE : 0);
+		byte[] bytes = page.toString().getBytes(StandardCharsets.UTF_8);
+		// a line too long for a datagram is cut
+		int length = Math.min(bytes.length, buffer.capacity() - Protocol.HEADER_SIZE - 4);
+		buffer.putShort((short) length);
+		buffer.put(bytes, 0, length);
+		buffer.putShort((short) next);
+		return Protocol.end(buffer);
+	}
+
+	/** Append the report to the file named by stats.file every INTERVAL milliseconds,
+	 * from a thread of its own; does nothing if stats.file is not set **/
+	public void startDump() {
+		if (FILE == null) {
+			return;
+		}
+		String fileName = FILE + "." + name.replaceAll("[^A-Za-z0-9_.-]", "_");
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(INTERVAL);
+						PrintWriter out = new PrintWriter(new FileWriter(fileName, true));
+						try {
+							out.println("# " + new Date());
+							for (String line : report()) {
+								out.println(line);
+							}
+						} finally {
+							out.close();
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.err.print("Unable to write statistics to " + fileName + ": " + e.getMessage() + "\n");
+					}
+				}
+			}
+		}, name + "-stats");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Print the report of the server listening on a port **/
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.print("Usage: java Stats port [ip]\n");
+			System.exit(1);
+		}
+		ReliableChannel channel = null;
+		try {
+			InetSocketAddress server = new InetSocketAddress(args.length > 1 ? args[1] : "127.0.0.1",
+					Integer.parseInt(args[0]));
+			channel = new ReliableChannel("Stats", 500, false);
+			channel.start();
+			int next = 0;
+			boolean more = true;
+			while (more) {
+				ByteBuffer request = ByteBuffer.allocate(BUFFER_SIZE);
+				Protocol.begin(request, Protocol.STATS, 0);
+				request.putShort((short) next);
+				ByteBuffer reply = channel.call(server, Protocol.end(request), "Statistics request is sent");
+				System.out.print(Protocol.getString(reply));
+				next = reply.getShort() & 0xFFFF;
+				more = (Protocol.getFlags(reply) & Protocol.FLAG_MORE) != 0;
+			}
+		} catch (NumberFormatException e) {
+			System.err.print("Invalid port " + args[0] + "\n");
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.print("No statistics: " + e.getMessage() + "\n");
+			System.exit(1);
+		} finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+}
@@ -1,19 +1,33 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -23,42 +37,105 @@ import java.util.List;
 public class Store {
 
 	public final int BUFFER_SIZE = 1024;
-	public final int REGISTER = 1;
-	public final int LOOKUP = 2;
-	public final int SUCCESS = 3;
-	public final int FAIL = 4;
-	public final int GET_BANK_INFO = 5;
-	public final int GET_CONTENT_INFO = 6;
-	public final int OK = 7;
-	public final int NOT_OK = 8;
-	public final int VALIDATE_TRANSACTION = 9;
-	public final int CONTENT_REQUEST = 10;
-	public final int LIST_ITEMS_REQUEST = 11;
-	public final int BUY_REQUEST = 12;
 
 	public final String NAMESERVER_IP = "127.0.0.1";
 	public final long TIMEOUT = 500;
+	public final long CONTENT_REFRESH = Long.getLong("store.contentRefresh", 10000);
+	/* size of a page of the list of items, from 64 to BUFFER_SIZE bytes */
+	public final int DATAGRAM_SIZE = Math.max(64, Math.min(BUFFER_SIZE, Integer.getInteger("store.datagramSize", BUFFER_SIZE)));
+	/* items printed at startup, a large catalog is not printed whole */
+	public final int PRINTED_ITEMS = 100;
+	/* event loops, each a thread with its own channel bound to the Store's port */
+	public final int LOOPS = Math.max(1, Integer.getInteger("store.loops", 1));
+
+	/* how purchases run: async, as a chain of callbacks on the event loop, or threads, each
+	 * validated by Bank on a virtual thread of its own (a pool of PURCHASE_THREADS threads before
+	 * Java 21), then completed on the event loop */
+	public final String MODE = System.getProperty("store.mode", "async");
+	public final int PURCHASE_THREADS = Integer.getInteger("store.purchaseThreads", 256);
+
+	/* validation requests sent to Bank in one datagram at most, as many as fit by default */
+	public final int BATCH_SIZE = Math.max(1, Math.min((BUFFER_SIZE - Protocol.HEADER_SIZE - 2) / 28,
+			Integer.getInteger("store.batchSize", BUFFER_SIZE)));
+	/* milliseconds a validation request may wait for others to share its datagram; with 0 the
+	 * requests of one round of the event loop are sent together, without waiting */
+	public final long BATCH_WINDOW = Long.getLong("store.batchWindow", 0);
+	/* milliseconds between two reports of refused requests */
+	public final long ADMISSION_REPORT = 10000;
+
+	/* SO_REUSEPORT, looked up at run time since it only exists from Java 9 on; null before */
+	private static final SocketOption<Boolean> REUSE_PORT = reusePortOption();
 
 	int storePort = 24000; // default value
+	String storeIP;
+	/* lease time of the registration with NameServer, renewed by heartbeats */
+	long lease;
 	int nameServerPort = 21000; // default value
 	private Selector selector = null;
 	private DatagramChannel datagramChannel = null;
 	private DatagramSocket datagramSocket = null;
 	String stockFileName;
 	int bankPort;
-	int contentPort;
 	String bankIP;
-	String contentIP;
-	List<Item> items = new ArrayList<Item>();
+	/* the stock, keyed by item ID; replaced as a whole when the stock file changes, so a
+	 * request reads one consistent catalog without locking */
+	AtomicReference<Catalog> catalog = new AtomicReference<Catalog>();
+	/* encoded pages of the list of items, rebuilt when the catalog changes */
+	ListingCache listing;
+
+	/* Bank and Content requests are retransmitted until answered, driven by the Store's selector */
+	TimingWheel timingWheel = new TimingWheel(10, 512);
+	ReliableChannel bankChannel;
+	SocketAddress bankAddress;
+
+	ReliableChannel contentChannel;
+	/* Content servers, each owning the items the ring assigns to it; a changed ring replaces
+	 * the current one, which the event loops keep reading meanwhile */
+	AtomicReference<HashRing<SocketAddress>> contentRing =
+			new AtomicReference<HashRing<SocketAddress>>(new HashRing<SocketAddress>());
+	/* NameServer is asked for the Content servers every CONTENT_REFRESH milliseconds */
+	ReliableChannel nameServerChannel;
+	SocketAddress nameServerAddress;
+
+	/* contents already fetched, and Content requests in flight shared by purchases of the same item */
+	ContentCache contentCache = new ContentCache();
+	/* number of CONTENT_RELOADED notices received, shared by the event loops; each loop empties
+	 * its content cache when the number differs from the one it last saw */
+	AtomicLong contentGeneration = new AtomicLong();
+	long seenContentGeneration = 0;
 
-	DatagramSocket bankSocket;
-	InetAddress bankIPAddress;
+	/* replies to purchases, so a retransmitted BUY_REQUEST is not executed twice */
+	ReplyCache replyCache = new ReplyCache();
+	/* chunked transfers relayed between Client and Content, keyed by transfer ID; shared by the
+	 * event loops, as chunks and acknowledgements may reach any of them */
+	Map<Long, Relay> relays = new ConcurrentHashMap<Long, Relay>();
 
-	DatagramSocket contentSocket;
-	InetAddress contentIPAddress;
+	/* purchases waiting for their validation request to be sent to Bank */
+	List<Purchase> validations = new ArrayList<Purchase>();
 
-	int result;
-	String message;
+	/* runs purchases in threads mode, shared by the event loops; null in async mode */
+	ExecutorService purchaseExecutor;
+	/* work handed back to the event loop by purchase threads */
+	Queue<Runnable> loopTasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/* new requests of each Client are limited by a token bucket (store.rate per second, store.burst
+	 * at once), and purchases are refused while store.queueSize of them are in progress */
+	AdmissionControl admission = new AdmissionControl("store", 200, 50, 4096);
+	/* purchases started and not answered yet */
+	int pendingPurchases = 0;
+
+	/* latency of each command, from its arrival to its reply, of the Bank and Content hops, and
+	 * counters, answered to STATS; shared by the event loops */
+	Stats stats;
+	LatencyHistogram bankHop;
+	LatencyHistogram contentHop;
+	LongAdder malformed;
+	LongAdder shedBusyReplies;
+
+	/* replies sent at once are assembled here */
+	ByteBuffer replyBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	/* replies waiting for the Store's channel to become writable */
+	Queue<List<Object>> replyQueue = new ArrayDeque<List<Object>>();
 
 	/**
 	 * @param args
@@ -69,71 +146,522 @@ public class Store {
 		/* register Store server to NameServer
 		 * then get Bank and Content servers' info */
 		register();
-		items = buildItemList();
-		try {
-			bankSocket = new DatagramSocket();
-			bankIPAddress = InetAddress.getByName(bankIP);
-			contentSocket = new DatagramSocket();
-			contentIPAddress = InetAddress.getByName(contentIP);
-		} catch (IOException e) {
-			e.printStackTrace();
+		catalog.set(buildCatalog());
+		if(MODE.equals("threads")) {
+			purchaseExecutor = newPurchaseExecutor();
 		}
-		serverInit();
+		initStats();
+		int loops = serverInit(true);
+		startLoops(loops);
 		// Print the list of items
-		printListItems(items);
+		printListItems();
+		// prices and items change without a restart
+		new FileWatcher(stockFileName, () -> reloadCatalog()).start();
 		handleRequests();
 	}
 
-	/** Print the list of items */
-	private void printListItems(List<Item> items) {
-		String str = "";
-		for(int i = 0; i < items.size(); i++) {
-			str = str + (i + 1) + ". " + items.get(i).getID() + " " +
-					items.get(i).getPrice() + "\n";
+	/** Another event loop of the same Store, sharing its catalog, Content servers and relayed transfers **/
+	private Store(Store store) {
+		storePort = store.storePort;
+		storeIP = store.storeIP;
+		lease = store.lease;
+		nameServerPort = store.nameServerPort;
+		nameServerAddress = store.nameServerAddress;
+		stockFileName = store.stockFileName;
+		bankPort = store.bankPort;
+		bankIP = store.bankIP;
+		catalog = store.catalog;
+		contentRing = store.contentRing;
+		relays = store.relays;
+		contentGeneration = store.contentGeneration;
+		purchaseExecutor = store.purchaseExecutor;
+		stats = store.stats;
+		bankHop = store.bankHop;
+		contentHop = store.contentHop;
+		malformed = store.malformed;
+		shedBusyReplies = store.shedBusyReplies;
+	}
+
+	/** Create the statistics shared by the event loops, read by the STATS command **/
+	private void initStats() {
+		stats = new Stats("Store " + storePort);
+		bankHop = stats.histogram("Bank hop");
+		contentHop = stats.histogram("Content hop");
+		malformed = stats.counter("malformed datagrams");
+		shedBusyReplies = stats.counter("BUSY replies dropped");
+		stats.startDump();
+	}
+
+	/** Add the numbers of this event loop to the statistics **/
+	private void addGauges() {
+		stats.gauge("duplicates", replyCache::getHits);
+		stats.gauge("purchases in progress", () -> pendingPurchases);
+		stats.gauge("Bank retransmissions", bankChannel::getRetransmits);
+		stats.gauge("Bank BUSY replies", bankChannel::getBusyReplies);
+		stats.gauge("Content retransmissions", contentChannel::getRetransmits);
+		stats.gauge("Content BUSY replies", contentChannel::getBusyReplies);
+		stats.gauge("content cache hits", contentCache::getHits);
+		stats.gauge("content cache misses", contentCache::getMisses);
+		stats.gauge("content cache evictions", contentCache::getEvictions);
+		stats.gauge("content cache coalesced", contentCache::getCoalesced);
+		stats.gauge("content cache size", contentCache::size);
+		stats.gauge("requests admitted", admission::getAdmitted);
+		stats.gauge("requests rate limited", admission::getRateLimited);
+		stats.gauge("requests refused with a full queue", admission::getQueueFull);
+		stats.gauge("queue depth max", admission::getMaxQueueDepth);
+	}
+
+	/** Start the event loops other than the main thread's **/
+	private void startLoops(int loops) {
+		for(int i = 1; i < loops; i++) {
+			Store loop = new Store(this);
+			loop.serverInit(false);
+			new Thread(loop::handleRequests, "Store-loop-" + i).start();
+		}
+		if(loops > 1) {
+			System.out.println("Store runs " + loops + " event loops");
+		}
+	}
+
+	/** An executor starting a virtual thread per purchase. Virtual threads only exist from
+	 * Java 21 on, so they are looked up at run time; before, purchases share a pool. **/
+	private ExecutorService newPurchaseExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not available: purchases run on " + PURCHASE_THREADS + " threads");
+			return Executors.newFixedThreadPool(PURCHASE_THREADS);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/** Print the list of items, the first PRINTED_ITEMS of a large catalog */
+	private void printListItems() {
+		Catalog stock = catalog.get();
+		StringBuilder str = new StringBuilder();
+		int count = Math.min(stock.size(), PRINTED_ITEMS);
+		for(int i = 0; i < count; i++) {
+			str.append(i + 1).append(". ").append(stock.getID(i)).append(" ")
+					.append(stock.getCents(i) / 100.0f).append("\n");
+		}
+		if(count < stock.size()) {
+			str.append("... ").append(stock.size() - count).append(" more items\n");
 		}
 		System.out.println("<<< List of items: >>>");
 		System.out.println(str);
 	}
 
-	/** Send a request to Bank server to check whether transaction is OK or NOT.
-	 * The results are stored in global variable "result" and "message"**/
-	private void getBankApproval(Item item, String creditCardNumber) {
+	/** Pages of the list of items of a catalog **/
+	private ListingCache getListing(Catalog stock) {
+		if(listing == null || listing.getVersion() != stock.getVersion()) {
+			listing = new ListingCache(stock, DATAGRAM_SIZE);
+		}
+		return listing;
+	}
+
+	/** Start a purchase: queue a validation request for Bank server.
+	 * The purchase continues in handleBankReply() when Bank answers. **/
+	private void startPurchase(Catalog stock, int position, long creditCardNumber, SocketAddress clientAddress,
+			int clientRequestID, int command, long received) {
+		Purchase purchase = new Purchase(stock.getID(position), stock.getCents(position), creditCardNumber,
+				clientAddress, clientRequestID);
+		purchase.state = Purchase.WAITING_BANK;
+		purchase.command = command;
+		purchase.received = received;
+		admission.setQueueDepth(++pendingPurchases);
+		if(purchaseExecutor != null) {
+			purchaseExecutor.execute(() -> runPurchase(purchase));
+			return;
+		}
+		validations.add(purchase);
+		if(validations.size() >= BATCH_SIZE) {
+			sendValidations();
+		} else if(validations.size() == 1 && BATCH_WINDOW > 0) {
+			timingWheel.schedule(BATCH_WINDOW, this::sendValidations);
+		}
+	}
+
+	/** Send the waiting validation requests to Bank, several in one VALIDATE_BATCH datagram **/
+	private void sendValidations() {
+		if(validations.isEmpty()) {
+			return;
+		}
+		List<Purchase> batch = validations;
+		validations = new ArrayList<Purchase>();
+		long sent = System.nanoTime();
+		if(batch.size() == 1) {
+			Purchase purchase = batch.get(0);
+			bankChannel.request(bankAddress, validationRequest(purchase), "Validation request is sent to Bank server.")
+					.whenComplete((reply, error) -> {
+						if(error != null) {
+							System.out.println("Bank server is not responding: " + error.getMessage());
+							abortPurchase(purchase);
+						} else {
+							bankHop.recordSince(sent);
+							/* message format: sequence of the decision's ledger record */
+							long sequence = reply.remaining() >= 8 ? reply.getLong() : -1;
+							handleBankReply(purchase, Protocol.getType(reply), sequence);
+						}
+					});
+			return;
+		}
+		/* command format: number of entries, then entry number, itemID, itemPrice, creditCardNumber of each */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.VALIDATE_BATCH, 0);
+		sendBuffer.putShort((short) batch.size());
+		for(int i = 0; i < batch.size(); i++) {
+			Purchase purchase = batch.get(i);
+			sendBuffer.putInt(i);
+			sendBuffer.putLong(purchase.itemID);
+			Protocol.putCents(sendBuffer, purchase.cents);
+			sendBuffer.putLong(purchase.creditCardNumber);
+		}
+		bankChannel.request(bankAddress, Protocol.end(sendBuffer),
+				batch.size() + " validation requests are sent to Bank server.")
+				.whenComplete((reply, error) -> {
+					if(error != null) {
+						System.out.println("Bank server is not responding: " + error.getMessage());
+						for(Purchase purchase : batch) {
+							abortPurchase(purchase);
+						}
+						return;
+					}
+					bankHop.recordSince(sent);
+					/* message format: number of entries, then entry number, result and sequence of the
+					 * ledger record of each; an answer other than SUCCESS has none */
+					boolean answered = Protocol.getType(reply) == Protocol.SUCCESS && reply.remaining() >= 2;
+					int count = answered ? reply.getShort() : 0;
+					for(int i = 0; i < count && reply.remaining() >= 14; i++) {
+						int entry = reply.getInt();
+						int result = reply.getShort();
+						long sequence = reply.getLong();
+						if(entry >= 0 && entry < batch.size() && batch.get(entry).state == Purchase.WAITING_BANK) {
+							handleBankReply(batch.get(entry), result, sequence);
+						}
+					}
+					// entries Bank did not answer are aborted
+					for(Purchase purchase : batch) {
+						if(purchase.state == Purchase.WAITING_BANK) {
+							abortPurchase(purchase);
+						}
+					}
+				});
+	}
+
+	/** The Bank step of a purchase, run by a thread of its own (store.mode=threads). The Bank
+	 * request blocks that thread only; the event loop still sends and receives it. The Content
+	 * step is handed back to the event loop, which owns the reply queue and the content cache,
+	 * so purchases of the same item share a Content request as in async mode. **/
+	private void runPurchase(Purchase purchase) {
 		try {
-			// set buffer
-			ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			/* command format: itemID + "\n" + itemPrice + "\n" + creditCardNumber */
-			String command = item.getID() + "\n" + item.getPrice() + "\n" + creditCardNumber + "\n";
-			DatagramPacket sendPacket = createSendPacket(bankIPAddress, bankPort, VALIDATE_TRANSACTION, command);
-			DatagramPacket receivePacket = implementReliability(bankSocket, sendPacket, 
+			long sent = System.nanoTime();
+			ByteBuffer bankReply = bankChannel.call(bankAddress, validationRequest(purchase),
 					"Validation request is sent to Bank server.");
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			result = receiveBuffer.getInt();
-			message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
+			bankHop.recordSince(sent);
+			int result = Protocol.getType(bankReply);
+			/* reply format: sequence of the decision's ledger record */
+			long sequence = bankReply.remaining() >= 8 ? bankReply.getLong() : -1;
+			runInLoop(() -> handleBankReply(purchase, result, sequence));
 		} catch (IOException e) {
-			e.printStackTrace();
+			System.out.println("Bank server is not responding: " + e.getMessage());
+			runInLoop(() -> abortPurchase(purchase));
 		}
 	}
 
-	/** Send a request to Content server to get content.
-	 * The results are stored in global variable "result" and "message"**/
-	private void getContent(Item item) {
-		try {
-			// set buffer
-			ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			/* command format: itemID */
-			String command = item.getID() + "\n";
-			DatagramPacket sendPacket = createSendPacket(contentIPAddress, contentPort, CONTENT_REQUEST, command);
-			DatagramPacket receivePacket = implementReliability(contentSocket, sendPacket, 
-					"Content request is sent to Content server.");
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			result = receiveBuffer.getInt();
-			message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/** Run a task on the event loop's thread **/
+	private void runInLoop(Runnable task) {
+		loopTasks.add(task);
+		selector.wakeup();
+	}
+
+	/** Validation request of a purchase for Bank **/
+	private ByteBuffer validationRequest(Purchase purchase) {
+		/* command format: itemID, itemPrice, creditCardNumber */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.VALIDATE_TRANSACTION, 0);
+		sendBuffer.putLong(purchase.itemID);
+		Protocol.putCents(sendBuffer, purchase.cents);
+		sendBuffer.putLong(purchase.creditCardNumber);
+		return Protocol.end(sendBuffer);
+	}
+
+	/** Void request of a purchase Bank approved **/
+	private ByteBuffer voidRequest(Purchase purchase) {
+		/* command format: sequence of the approval's ledger record, itemID, itemPrice, creditCardNumber */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.VOID_TRANSACTION, 0);
+		sendBuffer.putLong(purchase.bankSequence);
+		sendBuffer.putLong(purchase.itemID);
+		Protocol.putCents(sendBuffer, purchase.cents);
+		sendBuffer.putLong(purchase.creditCardNumber);
+		return Protocol.end(sendBuffer);
+	}
+
+	/** Content request of a purchase, with a new transfer ID in case the content is sent in chunks **/
+	private ByteBuffer contentRequest(Purchase purchase) {
+		/* command format: itemID, transferID */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.CONTENT_REQUEST, 0);
+		sendBuffer.putLong(purchase.itemID);
+		purchase.transferID = ThreadLocalRandom.current().nextLong();
+		sendBuffer.putLong(purchase.transferID);
+		return Protocol.end(sendBuffer);
+	}
+
+	/** Bank has answered: ask Content server for the content or abort the purchase **/
+	private void handleBankReply(Purchase purchase, int result, long sequence) {
+		if(result == Protocol.OK) {
+			purchase.bankSequence = sequence;
+			purchase.state = Purchase.WAITING_CONTENT;
+			long itemID = purchase.itemID;
+			String content = contentCache.get(itemID);
+			if(content != null) {
+				sendContent(purchase, itemID, content);
+				return;
+			}
+			CompletableFuture<ByteBuffer> request = contentCache.isChunked(itemID) ? null : contentCache.getInFlight(itemID);
+			if(request == null) {
+				requestContent(purchase);
+				return;
+			}
+			// another purchase of the item is already waiting for Content server: share its reply
+			request.whenComplete((contentReply, error) -> {
+				if(error != null) {
+					abortPurchase(purchase);
+				} else if((Protocol.getFlags(contentReply) & Protocol.FLAG_CHUNKED) != 0) {
+					// a chunked transfer serves one Client only
+					contentCache.putChunked(itemID);
+					requestContent(purchase);
+				} else {
+					handleContentReply(purchase, contentReply.duplicate());
+				}
+			});
+		} else { // NOT_OK, or any other answer
+			abortPurchase(purchase);
 		}
 	}
 
+	/** Ask Content server owning the item for its content **/
+	private void requestContent(Purchase purchase) {
+		long itemID = purchase.itemID;
+		// the Content server owning the item's shard
+		SocketAddress contentAddress = contentRing.get().get(itemID);
+		if(contentAddress == null) { // every Content server has left
+			abortPurchase(purchase);
+			return;
+		}
+		purchase.contentAddress = contentAddress;
+		long sent = System.nanoTime();
+		CompletableFuture<ByteBuffer> request = contentChannel.request(contentAddress, contentRequest(purchase),
+				"Content request is sent to Content server.");
+		if(!contentCache.isChunked(itemID)) {
+			contentCache.putInFlight(itemID, request);
+		}
+		request.whenComplete((contentReply, error) -> {
+			if(error != null) {
+				System.out.println("Content server is not responding: " + error.getMessage());
+				abortPurchase(purchase);
+			} else {
+				contentHop.recordSince(sent);
+				// the reply may be shared with other purchases of the item
+				handleContentReply(purchase, contentReply.duplicate());
+			}
+		});
+	}
+
+	/** Content has answered: complete the purchase **/
+	private void handleContentReply(Purchase purchase, ByteBuffer reply) {
+		if(Protocol.getType(reply) != Protocol.SUCCESS) {
+			abortPurchase(purchase);
+			return;
+		}
+		if((Protocol.getFlags(reply) & Protocol.FLAG_CHUNKED) != 0) {
+			relayContent(purchase, reply);
+			return;
+		}
+		/* message format from Content server: itemID, content */
+		long itemID = reply.getLong();
+		String content = Protocol.getString(reply);
+		contentCache.put(itemID, content);
+		sendContent(purchase, itemID, content);
+	}
+
+	/** Complete the purchase with content small enough for one datagram **/
+	private void sendContent(Purchase purchase, long itemID, String content) {
+		/* reply format: itemID, content, itemPrice */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.SUCCESS, purchase.clientRequestID);
+		sendBuffer.putLong(itemID);
+		Protocol.putString(sendBuffer, content);
+		Protocol.putCents(sendBuffer, purchase.cents);
+		completePurchase(purchase, Protocol.end(sendBuffer));
+	}
+
+	/** Content is too large for one datagram: tell the Client to fetch it in chunks through
+	 * this Store, which relays the chunks and acknowledgements without buffering them **/
+	private void relayContent(Purchase purchase, ByteBuffer reply) {
+		/* message format from Content server: itemID, transferID, length, number of chunks */
+		long itemID = reply.getLong();
+		long transferID = reply.getLong();
+		long length = reply.getLong();
+		int chunkCount = reply.getInt();
+		contentCache.putChunked(itemID);
+		Relay relay = new Relay(transferID, purchase.contentAddress, chunkCount);
+		relays.put(transferID, relay);
+		timingWheel.schedule(ChunkedTransfer.TRANSFER_TIMEOUT, relay);
+		/* reply format: itemID, transferID, length, number of chunks, itemPrice */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.SUCCESS, purchase.clientRequestID, Protocol.FLAG_CHUNKED);
+		sendBuffer.putLong(itemID);
+		sendBuffer.putLong(transferID);
+		sendBuffer.putLong(length);
+		sendBuffer.putInt(chunkCount);
+		Protocol.putCents(sendBuffer, purchase.cents);
+		completePurchase(purchase, Protocol.end(sendBuffer));
+	}
+
+	/** Forward a chunk to the Client or an acknowledgement to Content server **/
+	private void relayTransfer(SocketAddress sa, int typeCommand, ByteBuffer readBuffer) {
+		/* message format: transferID, then the chunk or the acknowledgement */
+		long transferID = readBuffer.getLong();
+		Relay relay = relays.get(transferID);
+		if(relay == null) {
+			return;
+		}
+		SocketAddress target;
+		if(typeCommand == Protocol.CONTENT_ACK) {
+			// chunks go back to wherever the acknowledgements come from
+			relay.clientAddress = sa;
+			target = relay.contentAddress;
+			if(readBuffer.getInt() >= relay.chunkCount) { // the Client has every chunk
+				relays.remove(transferID);
+			}
+		} else {
+			target = relay.clientAddress;
+		}
+		if(target == null) {
+			return;
+		}
+		relay.lastActivity = TimingWheel.now();
+		ByteBuffer copy = ByteBuffer.allocate(readBuffer.limit());
+		readBuffer.position(0);
+		copy.put(readBuffer);
+		copy.flip();
+		queueReply(target, copy);
+	}
+
+	/** Tell the Client its purchase was aborted, and have Bank credit the card back if it
+	 * approved the purchase already **/
+	private void abortPurchase(Purchase purchase) {
+		if(purchase.bankSequence >= 0 && purchase.state != Purchase.DONE) {
+			bankChannel.request(bankAddress, voidRequest(purchase), "Void request is sent to Bank server.")
+					.whenComplete((reply, error) -> {
+						if(error != null) {
+							System.out.println("Bank server is not responding, purchase of item " + purchase.itemID
+									+ " is not voided: " + error.getMessage());
+						}
+					});
+		}
+		/* reply format: itemID */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.FAIL, purchase.clientRequestID);
+		sendBuffer.putLong(purchase.itemID);
+		completePurchase(purchase, Protocol.end(sendBuffer));
+	}
+
+	/** Tell the Client the item it named, to buy it or as a listing's cursor, is not in stock **/
+	private void replyFail(SocketAddress clientAddress, int clientRequestID, long itemID) {
+		/* reply format: itemID */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.FAIL, clientRequestID);
+		sendBuffer.putLong(itemID);
+		queueReply(clientAddress, Protocol.end(sendBuffer));
+	}
+
+	/** Send the final reply of a purchase and remember it, so a retransmitted BUY_REQUEST
+	 * gets the same answer instead of buying again **/
+	private void completePurchase(Purchase purchase, ByteBuffer sendBuffer) {
+		if(purchase.state != Purchase.DONE) {
+			admission.setQueueDepth(--pendingPurchases);
+			stats.recordCommand(purchase.command, purchase.received);
+		}
+		purchase.state = Purchase.DONE;
+		replyCache.put(purchase.clientAddress, sendBuffer);
+		queueReply(purchase.clientAddress, sendBuffer);
+	}
+
+	/** Admit a new request from a Client, or refuse it for now
+	 * @return 0 if it is admitted, otherwise the milliseconds after which the Client may retry **/
+	private int admit(SocketAddress clientAddress, int typeCommand) {
+		// a purchase waits for Bank and Content
+		if(typeCommand == Protocol.BUY_REQUEST || typeCommand == Protocol.BUY_BY_ID) {
+			return admission.admit(clientAddress, pendingPurchases);
+		} else if(typeCommand == Protocol.LIST_ITEMS_REQUEST) {
+			return admission.admit(clientAddress);
+		}
+		return 0;
+	}
+
+	/** Tell a Client to retry its request later. The reply is dropped if replies are already
+	 * waiting, the Client retransmits anyway. **/
+	private void sendBusy(SocketAddress clientAddress, int requestID, int retryAfter) throws IOException {
+		if(!replyQueue.isEmpty()) {
+			shedBusyReplies.increment();
+			return;
+		}
+		/* reply format: milliseconds after which to retry */
+		Protocol.begin(replyBuffer, Protocol.BUSY, requestID);
+		replyBuffer.putInt(retryAfter);
+		datagramChannel.send(Protocol.end(replyBuffer), clientAddress);
+	}
+
+	/** Print the admission counters if requests were refused, every ADMISSION_REPORT milliseconds **/
+	private void reportAdmission() {
+		String report = admission.report(Thread.currentThread().getName().equals("main") ? "Store"
+				: Thread.currentThread().getName());
+		if(report != null) {
+			System.out.println(report);
+		}
+		timingWheel.schedule(ADMISSION_REPORT, this::reportAdmission);
+	}
+
+	/** Send a shared read-only reply to a Client under the request ID it answers. The reply
+	 * is copied into the Store's send buffer and sent at once if no reply is waiting,
+	 * otherwise a copy is queued. **/
+	private void sendReply(SocketAddress clientAddress, ByteBuffer reply, int requestID) throws IOException {
+		if(replyQueue.isEmpty()) {
+			replyBuffer.clear();
+			replyBuffer.put(reply.duplicate());
+			replyBuffer.flip();
+			Protocol.setRequestID(replyBuffer, requestID);
+			if(datagramChannel.send(replyBuffer, clientAddress) > 0) {
+				return;
+			}
+		}
+		ByteBuffer copy = ByteBuffer.allocate(reply.remaining());
+		copy.put(reply.duplicate());
+		copy.flip();
+		Protocol.setRequestID(copy, requestID);
+		queueReply(clientAddress, copy);
+	}
+
+	/** Queue a reply to a Client and wait for the Store's channel to become writable **/
+	private void queueReply(SocketAddress clientAddress, ByteBuffer sendBuffer) {
+		List<Object> objList = new ArrayList<Object>();
+		objList.add(clientAddress);
+		objList.add(sendBuffer);
+		replyQueue.add(objList);
+		datagramChannel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
 	/**
 	 * @param args
 	 */
@@ -142,8 +670,11 @@ public class Store {
 
 	}
 
-	/** Initialize server parameters **/
-	private void serverInit() {
+	/** Open and bind this event loop's channel and its Bank and Content channels. The main
+	 * loop also renews the registration and refreshes the Content servers.
+	 * @return the number of event loops the Store can run, 1 if the port cannot be shared **/
+	private int serverInit(boolean main) {
+		int loops = LOOPS;
 		try {
 			// open selector
 			selector = Selector.open();
@@ -158,6 +689,15 @@ public class Store {
 		}
 
 		try {
+			if(loops > 1) {
+				// every event loop binds the port; the kernel spreads Clients across them
+				if(REUSE_PORT != null && datagramChannel.supportedOptions().contains(REUSE_PORT)) {
+					datagramChannel.setOption(REUSE_PORT, true);
+				} else {
+					System.out.println("SO_REUSEPORT is not available: Store runs one event loop");
+					loops = 1;
+				}
+			}
 			// bind port
 			datagramSocket.bind(new InetSocketAddress(storePort));
 		} catch (IOException e) {
@@ -168,29 +708,49 @@ public class Store {
 			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
 			// registers this channel with the given selector, returning a selection key
 			datagramChannel.register(selector, SelectionKey.OP_READ, buffer);
-			System.err.print("Store waiting for incoming connections\n");
-		} catch (ClosedChannelException e) {
+			// replies from Bank and Content servers arrive on their own channels
+			bankChannel = new ReliableChannel("Store-Bank", TIMEOUT, true);
+			bankChannel.register(selector, timingWheel);
+			bankAddress = new InetSocketAddress(bankIP, bankPort);
+			contentChannel = new ReliableChannel("Store-Content", TIMEOUT, true);
+			contentChannel.register(selector, timingWheel);
+			addGauges();
+			if(main) {
+				nameServerChannel = new ReliableChannel("Store-NameServer", TIMEOUT, false);
+				nameServerChannel.register(selector, timingWheel);
+				timingWheel.schedule(CONTENT_REFRESH, this::refreshContentRing);
+				// renew the registration's lease from now on
+				new Heartbeat(datagramChannel, nameServerAddress, timingWheel,
+						"Store", storeIP, storePort, lease).start();
+				System.err.print("Store waiting for incoming connections\n");
+			}
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		return loops;
 	}
 
-	/** Read stock-file file into an internal data structure (Arraylist) **/
-	private List<Item> buildItemList() {
-		List<Item> itemList = new ArrayList<Store.Item>();
+	/** Load the stock file again after it changed and publish the new catalog. Runs on the
+	 * watcher's thread; requests keep using the old catalog until the swap. **/
+	private void reloadCatalog() {
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(stockFileName));
-			String line = null;
-			while ((line = reader.readLine()) != null) {
-				String[] columns = line.split(" ");
-				long id = Long.parseLong(columns[0]);
-				float price = Float.parseFloat(columns[1]);
-				itemList.add(new Item(id, price));
-			}
-			reader.close();
+			Catalog reloaded = Catalog.load(stockFileName);
+			catalog.set(reloaded);
+			System.out.println("Stock reloaded: " + reloaded.size() + " items");
+		} catch (Exception e) {
+			System.err.print("Store unable to reload " + stockFileName + ": " + e.getMessage() + "\n");
+		}
+	}
+
+	/** Read stock-file file into an internal data structure (Catalog) **/
+	private Catalog buildCatalog() {
+		try {
+			return Catalog.load(stockFileName);
 		} catch (Exception e) {
 			e.printStackTrace();
+			System.exit(1);
+			return null;
 		}
-		return itemList;
 	}
 
 	/** Validate arguments **/
@@ -223,78 +783,151 @@ public class Store {
 			return true;
 		}
 	}
-	/** Handle requests, queries from Clients **/
+	/** Handle requests, queries from Clients.
+	 * Replies from Bank and Content servers are handled by the same selector,
+	 * so a purchase waiting for them never blocks other Clients. **/
 	private void handleRequests() {
+		timingWheel.schedule(ADMISSION_REPORT, this::reportAdmission);
 		try {
-			while (selector.select() > 0) {
+			while (selector.isOpen()) {
+				// sleep until a datagram arrives or the next retransmission deadline
+				selector.select(timingWheel.nextTimeout());
+				long generation = contentGeneration.get();
+				if(generation != seenContentGeneration) { // Content has reloaded its content file
+					seenContentGeneration = generation;
+					contentCache.invalidateAll();
+				}
 				for (SelectionKey key : selector.selectedKeys()) {
+					// replies from Bank or Content server
+					if (key.attachment() instanceof ReliableChannel) {
+						((ReliableChannel) key.attachment()).handleRead();
+					}
 					// test whether this key's channel is ready for reading from Client
-					if (key.isReadable()) {
+					else if (key.isReadable()) {
 						// get allocated buffer with size BUFFER_SIZE
 						ByteBuffer readBuffer = (ByteBuffer) key.attachment();
 						DatagramChannel dc = (DatagramChannel) key.channel();
 						SocketAddress sa = dc.receive(readBuffer);
+						if (sa == null) {
+							continue;
+						}
+						long received = System.nanoTime();
 						readBuffer.flip();
-						int typeCommand = readBuffer.getInt();
-						message = Charset.forName("UTF-8").decode(readBuffer).toString();
-						readBuffer.clear();
-
-						// request for getting list of items
-						if(typeCommand == LIST_ITEMS_REQUEST) {
-							result = LIST_ITEMS_REQUEST;
-							message = "";
-							for(int i = 0; i < items.size(); i++) {
-								message = message + (i + 1) + ". " + items.get(i).getID() + " " +
-										items.get(i).getPrice() + "\n";
+						if(!Protocol.isValid(readBuffer)) { // malformed datagram
+							malformed.increment();
+							readBuffer.clear();
+							continue;
+						}
+						try {
+							int typeCommand = Protocol.getType(readBuffer);
+							int requestID = Protocol.getRequestID(readBuffer);
+							// chunked transfer
+							if(typeCommand == Protocol.CONTENT_CHUNK || typeCommand == Protocol.CONTENT_ACK) {
+								relayTransfer(sa, typeCommand, readBuffer);
+								readBuffer.clear();
+								stats.recordCommand(typeCommand, received);
+								continue;
 							}
+							if(typeCommand == Protocol.STATS) { // statistics, never cached
+								queueReply(sa, stats.reply(readBuffer, ByteBuffer.allocate(BUFFER_SIZE)));
+								readBuffer.clear();
+								continue;
+							}
+							if(typeCommand == Protocol.CONTENT_RELOADED) { // every event loop drops its cached contents
+								contentGeneration.incrementAndGet();
+								ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+								Protocol.begin(sendBuffer, Protocol.SUCCESS, requestID);
+								queueReply(sa, Protocol.end(sendBuffer));
+								readBuffer.clear();
+								stats.recordCommand(typeCommand, received);
+								continue;
+							}
+							ByteBuffer cachedReply = replyCache.get(sa, requestID);
+							int retryAfter;
 
-						} else if(typeCommand == BUY_REQUEST ) { // buy request
-							/*message format: orderNumber + "\n" + creditCardNumber*/
-							String[] orderInfo = message.split("\n");
-							int orderNumber = Integer.parseInt(orderInfo[0]);
-							String creditCardNumber = orderInfo[1];
-							int index = orderNumber - 1;
-							/* The results are stored in the global variables "result" and "message" */
-							getBankApproval(items.get(index), creditCardNumber);
-							if(result == OK) {
-								getContent(items.get(index));
-								/* message get from Content server: itemID + "\n" + content + "\n" */
-								/* add itemPrice to message */
-								String[] temp = message.split("\n");
-								message = temp[0] + "\n" + temp[1] + "\n" + items.get(index).getPrice() + "\n";
-								result = SUCCESS;
-							} else if(result == NOT_OK) {
-								message = items.get(index).getID() + "\n" + "transaction aborted";
-								result = FAIL;
+							if(cachedReply == ReplyCache.IN_PROGRESS) {
+								// duplicate of a purchase still waiting for Bank or Content: its reply is on the way
+							} else if(cachedReply != null) { // duplicate of a completed purchase: send the same reply
+								queueReply(sa, cachedReply);
+							} else if((retryAfter = admit(sa, typeCommand)) > 0) { // overloaded, or the Client sends too fast
+								sendBusy(sa, requestID, retryAfter);
+							} else if(typeCommand == Protocol.LIST_ITEMS_REQUEST) { // request for getting list of items
+								/* message format: page size, then cursor (the last itemID of the previous page);
+								 * both are optional, the first page has no cursor */
+								Catalog stock = catalog.get();
+								int pageSize = readBuffer.remaining() >= 2 ? readBuffer.getShort() & 0xFFFF : 0;
+								int start = 0;
+								if(readBuffer.remaining() >= 8) {
+									long cursor = readBuffer.getLong();
+									start = stock.indexOf(cursor) + 1;
+									if(start == 0) { // the cursor's item is no longer in stock
+										replyFail(sa, requestID, cursor);
+										readBuffer.clear();
+										continue;
+									}
+								}
+								sendReply(sa, getListing(stock).page(start, pageSize), requestID);
+								stats.recordCommand(typeCommand, received);
+							} else if(typeCommand == Protocol.BUY_REQUEST ) { // buy request
+								/*message format: orderNumber, creditCardNumber*/
+								int orderNumber = readBuffer.getInt();
+								long creditCardNumber = readBuffer.getLong();
+								Catalog stock = catalog.get();
+								int index = orderNumber - 1;
+								if(index < 0 || index >= stock.size()) {
+									replyFail(sa, requestID, 0);
+								} else {
+									replyCache.begin(sa, requestID);
+									startPurchase(stock, index, creditCardNumber, sa, requestID, typeCommand, received);
+								}
+							} else if(typeCommand == Protocol.BUY_BY_ID) { // buy request naming the item
+								/*message format: itemID, creditCardNumber*/
+								long itemID = readBuffer.getLong();
+								long creditCardNumber = readBuffer.getLong();
+								Catalog stock = catalog.get();
+								int index = stock.indexOf(itemID);
+								if(index < 0) {
+									replyFail(sa, requestID, itemID);
+								} else {
+									replyCache.begin(sa, requestID);
+									startPurchase(stock, index, creditCardNumber, sa, requestID, typeCommand, received);
+								}
 							}
+							readBuffer.clear();
+						} catch (BufferUnderflowException e) { // malformed datagram: payload shorter than its fields
+							malformed.increment();
+							readBuffer.clear();
 						}
-						readBuffer.putInt(result);
-						readBuffer.put(Charset.forName("UTF-8").encode(message));
-						readBuffer.flip();
-						List<Object> objList = new ArrayList<Object>();
-						objList.add(sa);
-						objList.add(readBuffer);
-						// set register status to WRITE
-						dc.register(key.selector(), SelectionKey.OP_WRITE, objList);
 					}
 					// test whether this key's channel is ready for sending to Client
-					else if (key.isWritable()) {
+					if (key.isValid() && key.isWritable()) {
 						DatagramChannel dc = (DatagramChannel) key.channel();
-						List<?> objList = (ArrayList<?>) key.attachment();
-						SocketAddress sa = (SocketAddress) objList.get(0);
-						ByteBuffer writeBuffer = (ByteBuffer) objList.get(1);
-						dc.send(writeBuffer, sa);
-						writeBuffer.clear();
-						// set register status to READ
-						dc.register(selector, SelectionKey.OP_READ, writeBuffer);
-						//printListItems(items);
+						while (!replyQueue.isEmpty()) {
+							List<?> objList = replyQueue.peek();
+							SocketAddress sa = (SocketAddress) objList.get(0);
+							ByteBuffer writeBuffer = (ByteBuffer) objList.get(1);
+							if (dc.send(writeBuffer, sa) == 0) {
+								break;
+							}
+							replyQueue.remove();
+						}
+						if (replyQueue.isEmpty()) {
+							// set register status to READ
+							key.interestOps(SelectionKey.OP_READ);
+						}
 					}
 				}
-				if (selector.isOpen()) {
-					selector.selectedKeys().clear();
-				} else {
-					break;
+				selector.selectedKeys().clear();
+				if(BATCH_WINDOW == 0) { // the purchases started in this round are validated together
+					sendValidations();
+				}
+				Runnable task;
+				while ((task = loopTasks.poll()) != null) {
+					task.run();
 				}
+				bankChannel.sendSubmitted();
+				contentChannel.sendSubmitted();
+				timingWheel.advance();
 			}
 		} catch (ClosedChannelException e) {
 			e.printStackTrace();
@@ -308,164 +941,164 @@ public class Store {
 					e.printStackTrace();
 				}
 			}
-			bankSocket.close();
-			contentSocket.close();
+			bankChannel.close();
+			contentChannel.close();
 		}
 	}
 
 	/** Register Store server with NameServer,
 	 * Get Bank server's info,
-	 * Get Content server's info
+	 * Get every Content server's info
 	 * **/
 	private void register() {
+		ReliableChannel nameServer = null;
 		try {
-			// construct datagram socket
-			DatagramSocket clientSocket = new DatagramSocket();
-			// set server's ip address
-			InetAddress IPAddress = InetAddress.getByName(NAMESERVER_IP);
-			// set buffers
-			ByteBuffer receiveBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			/* --------------Register with NameServer-------------- */
-			/* Message format: serverName + "\n" + serverIP + "\n" + serverPort */
-			String command = "Store" + "\n" + InetAddress.getLocalHost().getHostAddress() + "\n" + storePort + "\n";
-			DatagramPacket sendPacket = createSendPacket(IPAddress, nameServerPort, REGISTER, command);
-			DatagramPacket receivePacket = implementReliability(clientSocket, sendPacket, 
-					"Registration's info is sent to NameServer.");
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			int result = receiveBuffer.getInt();
-			String message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
-			if(result == SUCCESS) {
-				System.out.println(message);
-			} else if(result == FAIL) {
+			nameServer = new ReliableChannel("Store", TIMEOUT, true);
+			nameServer.start();
+			nameServerAddress = new InetSocketAddress(NAMESERVER_IP, nameServerPort);
+			/* --------------Register with NameServer and get Bank's info in one request-------------- */
+			Resolver resolver = new Resolver(nameServer, nameServerAddress, null);
+			storeIP = InetAddress.getLocalHost().getHostAddress();
+			int result = resolver.registerAndResolve("Store", storeIP, storePort, Arrays.asList("Bank"));
+			if(result == Protocol.FAIL) {
 				System.err.print("Registration with NameServer failed\n");
 				System.exit(1);
 			}
+			lease = resolver.getLease();
 
 			/* --------------Get Bank server's info-------------- */
-			command = "Bank" + "\n";
-			sendPacket = createSendPacket(IPAddress, nameServerPort, LOOKUP, command);
-			receivePacket = implementReliability(clientSocket, sendPacket, 
-					"Bank server's info request is sent to NameServer.");
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			result = receiveBuffer.getInt();
-			message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
-			if(result == SUCCESS) {
-				/* Message format: serverName + "\n" + serverIP + "\n" + serverPort */
-				String[] serverInfo = message.split("\n");
-				bankIP = serverInfo[1];
-				bankPort = Integer.parseInt(serverInfo[2]);
-			} else if(result == FAIL) {
+			InetSocketAddress serverInfo = resolver.resolve("Bank");
+			if(serverInfo != null) {
+				bankIP = serverInfo.getHostString();
+				bankPort = serverInfo.getPort();
+			} else {
 				System.err.print("Bank has not registered\n");
 				System.exit(1);
 			}
 
-			/* --------------Get Content server's info-------------- */
-			command = "Content" + "\n";
-			sendPacket = createSendPacket(IPAddress, nameServerPort, LOOKUP, command);
-			receivePacket = implementReliability(clientSocket, sendPacket, 
-					"Content server's info request is sent to NameServer.");
-			receiveBuffer = ByteBuffer.wrap(receivePacket.getData());
-			result = receiveBuffer.getInt();
-			message = Charset.forName("UTF-8").decode(receiveBuffer).toString();
-			if(result == SUCCESS) {
-				/* Message format: serverName + "\n" + serverIP + "\n" + serverPort */
-				String[] serverInfo = message.split("\n");
-				contentIP = serverInfo[1];
-				contentPort = Integer.parseInt(serverInfo[2]);
-			} else if(result == FAIL) {
+			/* --------------Get every Content server's info-------------- */
+			List<InetSocketAddress> contents = resolver.resolveAll("Content");
+			if(contents.isEmpty()) {
 				System.err.print("Content has not registered\n");
 				System.exit(1);
 			}
-
-			// close up
-			clientSocket.close();
+			updateContentRing(contents);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			System.err.print("Store unable to reach NameServer: " + e.getMessage() + "\n");
+			System.exit(1);
+		} finally {
+			// close up
+			if (nameServer != null) {
+				nameServer.close();
+			}
 		}
 	}
 
-	/** Simulate the packet loss 
-	 * @throws IOException */
-	private void simulatePacketLoss(DatagramSocket ds, DatagramPacket dp, String message) throws IOException {
-		double random = Math.random();
-		System.out.println(message);
-		if(random >= 0.5) {
-			ds.send(dp);
-		}
+	/** Ask NameServer for every Content server again, so Content servers that joined or
+	 * left are seen. Runs on the Store's loop every CONTENT_REFRESH milliseconds. **/
+	private void refreshContentRing() {
+		/* Message format: serverName */
+		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		Protocol.begin(sendBuffer, Protocol.LOOKUP_ALL, 0);
+		Protocol.putString(sendBuffer, "Content");
+		nameServerChannel.request(nameServerAddress, Protocol.end(sendBuffer), "Content servers' info request")
+				.whenComplete((reply, error) -> {
+					// without an answer the current ring is kept
+					if(error == null && Protocol.getType(reply) == Protocol.SUCCESS) {
+						/* Message format: number of instances, then serverName, serverIP, serverPort of each */
+						int count = reply.getShort();
+						List<InetSocketAddress> contents = new ArrayList<InetSocketAddress>();
+						for(int i = 0; i < count; i++) {
+							Protocol.getString(reply);
+							String ip = Protocol.getString(reply);
+							contents.add(new InetSocketAddress(ip, reply.getInt()));
+						}
+						updateContentRing(contents);
+					}
+					timingWheel.schedule(CONTENT_REFRESH, this::refreshContentRing);
+				});
 	}
 
-	/** Implements communication reliability. The sender process set a timeout for an ACK
-	 * arrival and retransmit the message if the timeout expires.
-	 * @throws IOException   
-	 * @return return packet received from server */
-	private DatagramPacket implementReliability(DatagramSocket clientSocket, 
-			DatagramPacket sendPacket, String message) throws IOException {
-		long startTime = 0;
-		byte[] receiveData = new byte[BUFFER_SIZE];
-		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-		Thread thread = new Thread( new Runnable() {
-			@Override
-			public void run() {
-				try {
-					// receive reply message from server
-					clientSocket.receive(receivePacket);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+	/** Add the Content servers that joined and remove the ones that left; the other
+	 * servers keep their points, so only the keys of the changed servers move **/
+	private void updateContentRing(List<InetSocketAddress> contents) {
+		HashRing<SocketAddress> ring = contentRing.get().copy();
+		Set<String> current = new HashSet<String>();
+		for(InetSocketAddress content : contents) {
+			String nodeID = content.getHostString() + ":" + content.getPort();
+			current.add(nodeID);
+			if(!ring.contains(nodeID)) {
+				ring.add(nodeID, content);
+				System.out.println("Content server " + nodeID + " joined the ring");
 			}
-		});
-
-		// send and simulate packet loss
-		simulatePacketLoss(clientSocket, sendPacket, "  >>> " + message);
-		startTime = System.currentTimeMillis();
-		thread.start();
-		while(thread.isAlive()) {
-			if(System.currentTimeMillis() - startTime > TIMEOUT && thread.isAlive()) {
-				System.out.println("Timeout expired");
-				// send and simulate packet loss
-				simulatePacketLoss(clientSocket, sendPacket, "RETRANSMIT: " + message);
-				startTime = System.currentTimeMillis();
+		}
+		for(String nodeID : new ArrayList<String>(ring.getNodeIDs())) {
+			if(!current.contains(nodeID)) {
+				ring.remove(nodeID);
+				System.out.println("Content server " + nodeID + " left the ring");
 			}
 		}
-		return receivePacket;
-	}
-
-	/** Create a send packet */
-	private DatagramPacket createSendPacket(InetAddress iPAddress, int port, int typeCommand, String command) {
-		byte[] sendData = new byte[BUFFER_SIZE];
-		ByteBuffer sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		sendBuffer.putInt(typeCommand);
-		sendBuffer.put(Charset.forName("UTF-8").encode(command));
-		sendBuffer.flip();
-		sendData = sendBuffer.array();
-		// send the message to server
-		DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, iPAddress, port);
-		return sendPacket;
+		contentRing.set(ring);
 	}
 
+	/** State of a purchase waiting for Bank or Content server **/
+	public class Purchase {
+		public static final int WAITING_BANK = 1;
+		public static final int WAITING_CONTENT = 2;
+		public static final int DONE = 3;
 
-	public class Item {
-		private long ID;
-		private float price;
+		int state;
+		long itemID;
+		/* price in cents */
+		long cents;
+		long creditCardNumber;
+		SocketAddress clientAddress;
+		int clientRequestID;
+		SocketAddress contentAddress;
+		long transferID;
+		/* sequence of Bank's ledger record approving the purchase, named to void it; -1 before */
+		long bankSequence = -1;
+		/* command of the Client's request, and its arrival as a System.nanoTime() value */
+		int command;
+		long received;
 
-		public Item(long ID, float price) {
-			this.ID = ID;
-			this.price = price;
+		public Purchase(long itemID, long cents, long creditCardNumber, SocketAddress clientAddress,
+				int clientRequestID) {
+			this.itemID = itemID;
+			this.cents = cents;
+			this.creditCardNumber = creditCardNumber;
+			this.clientAddress = clientAddress;
+			this.clientRequestID = clientRequestID;
 		}
+	}
 
-		public long getID() {
-			return ID;
-		}
-		public void setID(long iD) {
-			ID = iD;
-		}
-		public float getPrice() {
-			return price;
-		}
-		public void setPrice(float price) {
-			this.price = price;
+	/** A chunked transfer relayed between a Client and a Content server; forgotten once
+	 * complete or after TRANSFER_TIMEOUT milliseconds without traffic **/
+	public class Relay implements Runnable {
+		long transferID;
+		SocketAddress contentAddress;
+		/* written by whichever event loop receives the transfer's datagrams */
+		volatile SocketAddress clientAddress;
+		int chunkCount;
+		volatile long lastActivity = TimingWheel.now();
+
+		public Relay(long transferID, SocketAddress contentAddress, int chunkCount) {
+			this.transferID = transferID;
+			this.contentAddress = contentAddress;
+			this.chunkCount = chunkCount;
 		}
 
+		@Override
+		public void run() {
+			if(relays.get(transferID) != this) { // complete
+				return;
+			}
+			long idle = TimingWheel.now() - lastActivity;
+			if(idle < ChunkedTransfer.TRANSFER_TIMEOUT) {
+				timingWheel.schedule(ChunkedTransfer.TRANSFER_TIMEOUT - idle, this);
+			} else {
+				relays.remove(transferID);
+			}
+		}
 	}
 }
@@ -0,0 +1,157 @@
+/**
+ * Hashed timing wheel. Deadlines are hashed by tick into a ring of buckets,
+ * so scheduling and cancelling are O(1) however many timeouts are pending.
+ * The wheel is not thread-safe: it belongs to one event loop, which sleeps in
+ * select(nextTimeout()) and calls advance() after every wake-up. Expired tasks
+ * run on that loop's thread.
+ *
+ * @author Minh Toan HO - 43129560
+ *
+ */
+public class TimingWheel {
+
+	private final long tickDuration;
+	private final int mask;
+	private final Bucket[] buckets;
+	private final long startTime;
+	/* next tick to process */
+	private long currentTick = 0;
+	private int size = 0;
+
+	/**
+	 * @param tickDuration resolution of the wheel in milliseconds
+	 * @param wheelSize number of buckets, rounded up to a power of two
+	 */
+	public TimingWheel(long tickDuration, int wheelSize) {
+		int n = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.tickDuration = tickDuration;
+		this.mask = n - 1;
+		this.buckets = new Bucket[n];
+		for (int i = 0; i < n; i++) {
+			buckets[i] = new Bucket();
+		}
+		this.startTime = now();
+	}
+
+	/** Current time in milliseconds on a monotonic clock **/
+	public static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/** Run a task once delay milliseconds have passed **/
+	public Timeout schedule(long delay, Runnable task) {
+		long deadline = now() + Math.max(0, delay);
+		long tick = (deadline - startTime + tickDuration - 1) / tickDuration;
+		if (tick < currentTick) {
+			tick = currentTick;
+		}
+		Timeout timeout = new Timeout(tick, task);
+		buckets[(int) (tick & mask)].add(timeout);
+		size++;
+		return timeout;
+	}
+
+	/** Run every task whose deadline has passed **/
+	public void advance() {
+		long nowTick = (now() - startTime) / tickDuration;
+		if (size == 0) {
+			// nothing to run: skip the ticks elapsed while the loop was idle instead of walking them
+			currentTick = Math.max(currentTick, nowTick + 1);
+			return;
+		}
+		while (currentTick <= nowTick) {
+			long tick = currentTick++;
+			Bucket bucket = buckets[(int) (tick & mask)];
+			Timeout timeout = bucket.head;
+			while (timeout != null) {
+				// next is kept by remove(), so tasks may cancel other timeouts of this bucket
+				Timeout next = timeout.next;
+				if (timeout.bucket == bucket && timeout.tick <= tick) {
+					bucket.remove(timeout);
+					size--;
+					timeout.task.run();
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/** Milliseconds until the next tick holding a timeout, for Selector.select(timeout).
+	 * @return 0 if nothing is scheduled, meaning select() may block indefinitely **/
+	public long nextTimeout() {
+		if (size == 0) {
+			return 0;
+		}
+		long elapsed = now() - startTime;
+		for (long tick = currentTick; tick < currentTick + buckets.length; tick++) {
+			if (buckets[(int) (tick & mask)].head != null) {
+				return Math.max(1, tick * tickDuration - elapsed);
+			}
+		}
+		return buckets.length * tickDuration;
+	}
+
+	/** Number of pending timeouts **/
+	public int size() {
+		return size;
+	}
+
+	/** A scheduled task **/
+	public class Timeout {
+		private final long tick;
+		private final Runnable task;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		Timeout(long tick, Runnable task) {
+			this.tick = tick;
+			this.task = task;
+		}
+
+		/** Cancel the task if it has not run yet **/
+		public void cancel() {
+			if (bucket != null) {
+				bucket.remove(this);
+				size--;
+			}
+		}
+
+		public boolean isPending() {
+			return bucket != null;
+		}
+	}
+
+	/** Doubly linked list of the timeouts hashed to one slot **/
+	private class Bucket {
+		Timeout head;
+		Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.prev = tail;
+			timeout.next = null;
+			if (tail == null) {
+				head = timeout;
+			} else {
+				tail.next = timeout;
+			}
+			tail = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev == null) {
+				head = timeout.next;
+			} else {
+				timeout.prev.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				tail = timeout.prev;
+			} else {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.bucket = null;
+			timeout.prev = null;
+		}
+	}
+}